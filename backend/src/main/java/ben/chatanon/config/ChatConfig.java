@@ -0,0 +1,66 @@
+package ben.chatanon.config;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+@EnableConfigurationProperties(ChatProperties.class)
+public class ChatConfig {
+
+    // 聊天模块专用线程池，避免占用 servlet 线程
+    @Bean
+    public ThreadPoolTaskExecutor chatTaskExecutor(ChatProperties properties) {
+        ChatProperties.Executor config = properties.getExecutor();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(config.getCorePoolSize());
+        executor.setMaxPoolSize(config.getMaxPoolSize());
+        executor.setQueueCapacity(config.getQueueCapacity());
+        executor.setThreadNamePrefix("chat-task-");
+        // 队列满时由调用线程执行，不丢任务
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.initialize();
+        return executor;
+    }
+
+    // 会话摘要专用线程池：摘要可以晚做或跳过，队列满时拒绝（由 SummaryService 计数后跳过），
+    // 不与情感判断、落库共用线程，也不会退回到调用线程上执行
+    @Bean
+    public ThreadPoolTaskExecutor chatSummaryExecutor(ChatProperties properties) {
+        ChatProperties.Executor config = properties.getExecutor();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(config.getSummaryPoolSize());
+        executor.setMaxPoolSize(config.getSummaryPoolSize());
+        executor.setQueueCapacity(config.getSummaryQueueCapacity());
+        executor.setThreadNamePrefix("chat-summary-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.initialize();
+        return executor;
+    }
+
+    // 聊天模块定时任务（SSE 合并发送的定时 flush 等）
+    @Bean
+    public ThreadPoolTaskScheduler chatTaskScheduler(ChatProperties properties) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(properties.getExecutor().getSchedulerPoolSize());
+        scheduler.setThreadNamePrefix("chat-scheduler-");
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // Redis pub/sub 监听容器（多节点间的缓存失效广播）
+    @Bean
+    public RedisMessageListenerContainer redisListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+}
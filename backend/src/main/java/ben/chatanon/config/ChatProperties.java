@@ -0,0 +1,357 @@
+package ben.chatanon.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 聊天模块相关配置（application.yml 中 chat 前缀）
+@Data
+@ConfigurationProperties(prefix = "chat")
+public class ChatProperties {
+    private Emotion emotion = new Emotion();
+    private Executor executor = new Executor();
+    private Context context = new Context();
+    private Summary summary = new Summary();
+    private HistoryCache historyCache = new HistoryCache();
+    private Upstream upstream = new Upstream();
+    private Stream stream = new Stream();
+    private WriteBehind writeBehind = new WriteBehind();
+    private Tokens tokens = new Tokens();
+    private Admission admission = new Admission();
+    private Idempotency idempotency = new Idempotency();
+    private Turn turn = new Turn();
+    private Concurrency concurrency = new Concurrency();
+    private Breaker breaker = new Breaker();
+    private Retry retry = new Retry();
+    private Routing routing = new Routing();
+    private Hedge hedge = new Hedge();
+
+    @Data
+    public static class Emotion {
+        // 情感判断的最长等待时间（毫秒），超时后直接下发 default
+        private long timeoutMs = 3000;
+        // 只把最近多少条 user / assistant 消息交给情感判断，<= 0 不限制
+        private int windowMessages = 6;
+        // 情感判断结果缓存时长（分钟），<= 0 不缓存
+        private long cacheTtlMinutes = 60;
+        // 分类模式：remote / local / local-then-remote-if-uncertain
+        private String mode = "remote";
+        // 按 modelVersion 指定分类模式
+        private Map<String, String> modes = new HashMap<>();
+        private LocalClassifier local = new LocalClassifier();
+    }
+
+    @Data
+    public static class Executor {
+        // 聊天后台任务线程池（情感判断等）
+        private int corePoolSize = 8;
+        private int maxPoolSize = 32;
+        private int queueCapacity = 200;
+        // 定时任务线程数
+        private int schedulerPoolSize = 2;
+        // 会话摘要专用线程池，队列满时跳过本次摘要（下一轮再触发），不在调用线程上执行
+        private int summaryPoolSize = 2;
+        private int summaryQueueCapacity = 50;
+    }
+
+    @Data
+    public static class Context {
+        // 默认上下文窗口大小（token）
+        private int defaultWindowTokens = 32768;
+        // 按 modelVersion 单独配置的上下文窗口大小
+        private Map<String, Integer> windowTokens = new HashMap<>();
+    }
+
+    @Data
+    public static class Summary {
+        private boolean enabled = true;
+        // 未摘要的消息超出保留区多少轮（一问一答为一轮）后触发一次增量摘要
+        private int everyTurns = 10;
+        // 最近的若干条消息始终以原文发送，不参与摘要
+        private int keepRecentMessages = 20;
+        // 生成摘要时的 max_tokens
+        private int maxTokens = 512;
+        // 单次折叠最多送入模型的消息 token 数（另受模型上下文预算限制），更早的积压由后续折叠继续处理
+        private int foldMaxTokens = 8000;
+        // 单次折叠最多读取的消息条数
+        private int foldMaxMessages = 200;
+        // 一次后台任务最多连续折叠的次数，剩余的积压等下一轮回答入库后继续
+        private int maxFoldsPerRun = 4;
+        // 估算原文历史可用预算时为角色 / 背景等 system 提示词预留的 token 数
+        private int promptReserveTokens = 2048;
+    }
+
+    @Data
+    public static class HistoryCache {
+        // 每个会话在 Redis 中保留的最近消息条数
+        private int maxMessages = 200;
+        // 缓存过期时间（分钟），过期后下次读取回源 MySQL
+        private long ttlMinutes = 1440;
+    }
+
+    @Data
+    public static class Upstream {
+        // 启动时预先与各供应商建立连接
+        private boolean prewarm = true;
+        // 未单独配置的供应商使用的默认参数
+        private Provider defaults = new Provider();
+        // 按供应商（scheme://host:port）单独配置
+        private Map<String, Provider> providers = new HashMap<>();
+        private Scheduler scheduler = new Scheduler();
+    }
+
+    @Data
+    public static class Scheduler {
+        // 按调用类别分通道排队，供应商并发（maxRequestsPerHost）占满时按权重分配空出的名额
+        private boolean enabled = true;
+        // key 为通道名：interactive（聊天回答）、emotion（情感判断）、background（摘要等后台任务）
+        private Map<String, SchedulerLane> lanes = new HashMap<>(Map.of(
+                "interactive", new SchedulerLane(8, 256, 10000),
+                "emotion", new SchedulerLane(4, 256, 2000),
+                "background", new SchedulerLane(1, 64, 60000)
+        ));
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SchedulerLane {
+        // 权重，越大越优先拿到空出的并发名额
+        private int weight = 1;
+        // 排队上限，满了直接拒绝
+        private int queueCapacity = 64;
+        // 最长排队时间（毫秒），超过后丢弃
+        private long maxWaitMs = 10000;
+    }
+
+    @Data
+    public static class Provider {
+        // 调度器并发上限（总数 / 单 host）
+        private int maxRequests = 256;
+        private int maxRequestsPerHost = 64;
+        // 连接池
+        private int maxIdleConnections = 32;
+        private long keepAliveSeconds = 300;
+        private boolean http2 = true;
+        // 超时（毫秒）
+        private long connectTimeoutMs = 5000;
+        private long readTimeoutMs = 60000;
+        private long callTimeoutMs = 120000;
+        // 流式响应两次数据之间的最长空闲时间
+        private long streamIdleTimeoutMs = 60000;
+    }
+
+    @Data
+    public static class Stream {
+        // SseEmitter 超时时间（毫秒），0 为永不超时
+        private long emitterTimeoutMs = 0;
+        private Coalesce coalesce = new Coalesce();
+        private Resume resume = new Resume();
+    }
+
+    @Data
+    public static class Coalesce {
+        // 默认是否合并发送（请求可通过 ChatMessageDto.coalesce 单独关闭）
+        private boolean enabled = true;
+        // 最长缓冲时间（毫秒）
+        private long intervalMs = 40;
+        // 缓冲达到该字节数立即发送
+        private int maxBytes = 2048;
+    }
+
+    @Data
+    public static class Resume {
+        // 下发帧写入 Redis Stream，支持 Last-Event-ID 断线续传
+        private boolean enabled = true;
+        // 客户端断开后一直生成到结束（只写 Redis，等待续传），不受宽限期限制
+        // 开启后断开的请求会一直占用会话和模型并发名额直到生成结束，断开取消带来的节省也不再生效
+        private boolean continueAfterDisconnect = false;
+        // 客户端断开后继续生成的宽限期（毫秒）：期间有续传接入则继续，否则取消上游请求并按中断保存；
+        // 0 为断开即取消
+        private long disconnectGraceMs = 15000;
+        // 生成过程中 Stream 的过期时间（毫秒），防止节点宕机后残留
+        private long activeTtlMs = 600000;
+        // 最后一帧写入后 Stream 的保留时间（毫秒）
+        private long retainAfterDoneMs = 60000;
+        // 续传时轮询新帧的间隔（毫秒）
+        private long pollIntervalMs = 50;
+        // 续传时超过该时间没有新帧则结束（毫秒）
+        private long idleTimeoutMs = 30000;
+    }
+
+    @Data
+    public static class WriteBehind {
+        private boolean enabled = true;
+        // 有界队列容量，满了之后由调用线程同步写入
+        private int queueCapacity = 10000;
+        // 入队最多等待的毫秒数
+        private long offerTimeoutMs = 50;
+        private int batchSize = 100;
+        private long flushIntervalMs = 200;
+    }
+
+    @Data
+    public static class Tokens {
+        // 默认分词编码：jtokkit 支持的编码名（cl100k_base、o200k_base 等）或 heuristic
+        private String defaultEncoding = "o200k_base";
+        // 按 modelVersion 指定编码
+        private Map<String, String> encodings = new HashMap<>();
+        // 静态提示词计数缓存上限
+        private int staticCacheSize = 1024;
+        // 流式请求附带 stream_options.include_usage，让供应商在最后返回 usage
+        private boolean streamUsage = true;
+    }
+
+    @Data
+    public static class Admission {
+        private boolean enabled = true;
+        // Redis 不可用时直接放行
+        private boolean failOpen = true;
+        // 并发许可的租约时长，节点宕机未归还时到期自动释放
+        private long leaseMs = 600000;
+        // 并发超限时建议客户端多久后重试
+        private long busyRetryAfterMs = 1000;
+        // 未单独配置的用户类型使用该限制
+        private Limit defaultTier = new Limit(0.5, 10, 3);
+        // 按用户类型（userType）配置
+        private Map<String, Limit> tiers = new HashMap<>();
+        // 未单独配置的模型使用该限制（默认只限并发）
+        private Limit defaultModel = new Limit(0, 0, 64);
+        // 按 modelVersion 配置
+        private Map<String, Limit> models = new HashMap<>();
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Limit {
+        // 令牌桶每秒补充数，<= 0 不限速
+        private double ratePerSecond;
+        // 令牌桶容量（允许的突发请求数）
+        private int burst;
+        // 同时在途的请求数上限，<= 0 不限制
+        private int maxConcurrent;
+    }
+
+    @Data
+    public static class LocalClassifier {
+        // 越早的消息权重越低，每往前一条乘以该系数
+        private double decay = 0.5;
+        // 最高分低于该值视为不确定
+        private double minScore = 1.0;
+        // 最高分与第二名的差距低于该值视为不确定
+        private double minMargin = 0.5;
+        // 词表重新加载间隔（分钟）
+        private long lexiconRefreshMinutes = 10;
+    }
+
+    @Data
+    public static class Idempotency {
+        // 按 ChatMessageDto.idempotencyKey / Idempotency-Key 请求头去重，重复请求不再调用模型
+        private boolean enabled = true;
+        // 去重记录保留时间（毫秒），生成中的记录也按此过期
+        private long ttlMs = 600000;
+        // 重复请求等待原请求完成的最长时间（毫秒）
+        private long waitTimeoutMs = 120000;
+        // 等待原请求完成时的轮询间隔（毫秒）
+        private long pollIntervalMs = 200;
+    }
+
+    @Data
+    public static class Turn {
+        // 同一会话的轮次按顺序执行，上一轮回答保存前不会读取历史开始下一轮
+        private boolean enabled = true;
+        // 上一轮未结束时的处理：queue（排队等待）/ reject（直接拒绝）/ cancel-previous（取消上一轮）
+        private String policy = "queue";
+        // 排队（含等待上一轮取消完成）的最长时间（毫秒），超时拒绝
+        private long queueTimeoutMs = 30000;
+        // 多节点部署时 Redis 租约的过期时间（毫秒），轮次进行中每 1/3 过期时间续期一次，节点宕机后由过期兜底
+        private long leaseMs = 30000;
+        // 等待其它节点释放租约时的轮询间隔（毫秒）
+        private long pollIntervalMs = 100;
+        // 进程内分段锁数量
+        private int stripes = 64;
+    }
+
+    @Data
+    public static class Concurrency {
+        // 按模型自适应调整在途请求上限，超出时快速失败（503）
+        private boolean enabled = true;
+        private int initialLimit = 20;
+        private int minLimit = 2;
+        private int maxLimit = 200;
+        // 短期延迟超过长期基线的容忍倍数，超过后开始收缩
+        private double rttTolerance = 1.5;
+        // 每次调整时新上限的权重（0~1），越小越平滑
+        private double smoothing = 0.2;
+        // 短期 / 长期延迟均值的窗口（按样本数）
+        private int shortWindow = 10;
+        private int longWindow = 600;
+        // 供应商限流（429）、5xx 或超时时上限乘以该比例
+        private double backoffRatio = 0.9;
+    }
+
+    @Data
+    public static class Breaker {
+        // 按模型熔断，打开期间直接失败（503），不再等待供应商超时
+        private boolean enabled = true;
+        // 统计失败率的最近调用次数
+        private int windowSize = 20;
+        // 窗口内至少多少次调用才判断是否打开
+        private int minCalls = 10;
+        // 失败率（百分比）达到该值时打开
+        private int failureRatePercent = 50;
+        // 打开后多久进入半开（毫秒）
+        private long openMs = 10000;
+        // 半开时放行的探测请求数，全部成功才关闭
+        private int halfOpenProbes = 2;
+    }
+
+    @Data
+    public static class Retry {
+        // 收到响应头之前的失败（连接失败、超时、429 / 5xx）最多重试次数，已开始输出的流不重试
+        private int maxRetries = 2;
+        // 第 n 次重试前在 [0, min(maxDelayMs, baseDelayMs * 2^n)) 内随机等待
+        private long baseDelayMs = 200;
+        private long maxDelayMs = 2000;
+    }
+
+    @Data
+    public static class Routing {
+        // 模型组内按延迟和错误率挑选成员，关闭时始终使用会话绑定的模型
+        private boolean enabled = true;
+        // 组成员列表的缓存时间（毫秒），新增 / 下线部署在此时间内生效
+        private long refreshMs = 60000;
+        // 首字节延迟、错误率指数移动平均中新样本的权重（0~1）
+        private double smoothing = 0.3;
+        // 没有延迟样本的成员按该延迟（毫秒）估算
+        private long initialLatencyMs = 1000;
+        // 错误率惩罚：成本乘以 (1 + errorPenalty * 错误率)
+        private double errorPenalty = 10;
+    }
+
+    @Data
+    public static class Hedge {
+        // 非流式调用超过该模型 p95 仍未返回时再发一次，取先返回的结果（默认关闭）
+        private boolean enabled = false;
+        // 启用对冲的通道（interactive 即 sendMessage/once，emotion 即情感判断）
+        private List<String> lanes = new ArrayList<>(List.of("interactive", "emotion"));
+        // 对冲请求占可对冲调用量的比例上限（百分比）
+        private double budgetPercent = 5;
+        // 预算最多累积多少次对冲（突发上限）
+        private int maxBurst = 10;
+        // 统计 p95 的最近调用次数，样本不足 minSamples 时不对冲
+        private int windowSize = 200;
+        private int minSamples = 20;
+        // 对冲等待时间下限（毫秒）
+        private long minDelayMs = 50;
+        // 对冲请求优先发往同一模型组的其它成员，没有其它成员时发往同一部署
+        private boolean alternate = true;
+    }
+}
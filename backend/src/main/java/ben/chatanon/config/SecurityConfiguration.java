@@ -1,10 +1,12 @@
 package ben.chatanon.config;
 
 import ben.chatanon.filter.JWTAuthorizeFilter;
+import ben.chatanon.util.ChatStreamProtocol;
 import jakarta.servlet.DispatcherType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
@@ -70,6 +72,7 @@ public class SecurityConfiguration {
         config.setAllowedOriginPatterns(List.of("*"));                          // dev: allow all origins
         config.setAllowedMethods(List.of("GET","POST","PUT","DELETE","OPTIONS"));
         config.setAllowedHeaders(List.of("*"));
+        config.setExposedHeaders(List.of(ChatStreamProtocol.HEADER, HttpHeaders.RETRY_AFTER));  // 前端读取流式协议协商结果、限流重试时间
         config.setAllowCredentials(true);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
@@ -4,12 +4,22 @@ import ben.chatanon.entity.dto.ChatMessageDto;
 import ben.chatanon.entity.dto.EditSessionDto;
 import ben.chatanon.entity.dto.NewSessionDto;
 import ben.chatanon.entity.vo.*;
+import ben.chatanon.service.AdaptiveConcurrencyLimiter;
+import ben.chatanon.service.AdmissionControlService;
 import ben.chatanon.service.ChatService;
+import ben.chatanon.service.CircuitBreakerRegistry;
+import ben.chatanon.service.GenerationStreamService;
+import ben.chatanon.service.TurnSequencer;
+import ben.chatanon.util.ChatStreamProtocol;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 import java.util.Map;
@@ -21,15 +31,90 @@ public class ChatController {
     @Autowired
     private ChatService chatService;
 
+    @Autowired
+    private GenerationStreamService generationStreamService;
+
     // 发送信息
     @PostMapping(value = "/sendMessage/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter sendMessageMode1(@RequestBody ChatMessageDto dto) {
-            return chatService.sendMessageStream(dto);
+    public ResponseEntity<?> sendMessageMode1(@RequestBody ChatMessageDto dto,
+                                              @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        withIdempotencyKey(dto, idempotencyKey);
+        SseEmitter emitter;
+        try {
+            emitter = chatService.sendMessageStream(dto);
+        } catch (AdmissionControlService.RejectedException e) {
+            return tooManyRequests(e);
+        } catch (TurnSequencer.BusyException e) {
+            return sessionBusy(e);
+        } catch (AdaptiveConcurrencyLimiter.LimitExceededException e) {
+            return serviceUnavailable(e);
+        } catch (CircuitBreakerRegistry.CircuitOpenException e) {
+            return circuitOpen(e);
+        }
+        // 回显实际使用的下发协议
+        return ResponseEntity.ok()
+                .header(ChatStreamProtocol.HEADER, ChatStreamProtocol.of(dto.getProtocol()).getName())
+                .body(emitter);
+    }
+
+    // 响应式流式接口：事件协议与 /sendMessage/stream 相同，等待上游数据时不占用线程
+    @PostMapping(value = "/sendMessage/flux", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> sendMessageFlux(@RequestBody ChatMessageDto dto,
+                                             @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        withIdempotencyKey(dto, idempotencyKey);
+        Flux<ServerSentEvent<String>> events;
+        try {
+            events = chatService.sendMessageFlux(dto);
+        } catch (AdmissionControlService.RejectedException e) {
+            return tooManyRequests(e);
+        } catch (TurnSequencer.BusyException e) {
+            return sessionBusy(e);
+        } catch (AdaptiveConcurrencyLimiter.LimitExceededException e) {
+            return serviceUnavailable(e);
+        } catch (CircuitBreakerRegistry.CircuitOpenException e) {
+            return circuitOpen(e);
+        }
+        return ResponseEntity.ok()
+                .header(ChatStreamProtocol.HEADER, ChatStreamProtocol.of(dto.getProtocol()).getName())
+                .body(events);
+    }
+
+    // 断线续传：带上最后收到的事件 id（Last-Event-ID 请求头或 lastEventId 参数），
+    // 回放之后的帧并继续跟随直到回答结束；任一节点都可处理
+    @GetMapping(value = "/sendMessage/resume", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> resumeMessage(@RequestHeader(value = "Last-Event-ID", required = false) String lastEventIdHeader,
+                                           @RequestParam(required = false) String lastEventId) {
+        String[] parsed = GenerationStreamService.parseEventId(
+                lastEventIdHeader != null ? lastEventIdHeader : lastEventId);
+        if (parsed == null) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(Map.of("status", "fail", "msg", "Last-Event-ID 格式错误"));
+        }
+        if (!generationStreamService.exists(parsed[0])) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(Map.of("status", "fail", "msg", "回答不存在或已过期"));
+        }
+        return ResponseEntity.ok(generationStreamService.resume(parsed[0], Long.parseLong(parsed[1])));
     }
 
     @PostMapping("/sendMessage/once")
-    public ResponseEntity<?> sendMessageMode2(@RequestBody ChatMessageDto dto) {
-        Map<String, Object> result = chatService.sendMessageOnce(dto);
+    public ResponseEntity<?> sendMessageMode2(@RequestBody ChatMessageDto dto,
+                                              @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        withIdempotencyKey(dto, idempotencyKey);
+        Map<String, Object> result;
+        try {
+            result = chatService.sendMessageOnce(dto);
+        } catch (AdmissionControlService.RejectedException e) {
+            return tooManyRequests(e);
+        } catch (TurnSequencer.BusyException e) {
+            return sessionBusy(e);
+        } catch (AdaptiveConcurrencyLimiter.LimitExceededException e) {
+            return serviceUnavailable(e);
+        } catch (CircuitBreakerRegistry.CircuitOpenException e) {
+            return circuitOpen(e);
+        }
         return ResponseEntity.ok(
                 Map.of(
                         "status", "success",
@@ -39,6 +124,13 @@ public class ChatController {
         );
     }
 
+    // 请求体未带幂等键时使用 Idempotency-Key 请求头
+    private static void withIdempotencyKey(ChatMessageDto dto, String idempotencyKey) {
+        if (dto.getIdempotencyKey() == null) {
+            dto.setIdempotencyKey(idempotencyKey);
+        }
+    }
+
     // 获取Live2D文件（有新的方案，暂时废弃）
     @GetMapping("/l2d")
     public ResponseEntity<?> getLive2D(@RequestParam String emotion) {
@@ -137,4 +229,56 @@ public class ChatController {
                 "messageId", messageId
         ));
     }
+
+    // 准入控制拒绝：429 + Retry-After（秒），响应体中附带毫秒级的重试时间
+    private ResponseEntity<?> tooManyRequests(AdmissionControlService.RejectedException e) {
+        long retryAfterSeconds = Math.max(1, (e.getRetryAfterMs() + 999) / 1000);
+        // 流式接口声明了 text/event-stream，这里显式指定 JSON
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Map.of(
+                        "status", "fail",
+                        "msg", e.getMessage(),
+                        "data", Map.of(
+                                "reason", e.getReason(),
+                                "retryAfterMs", e.getRetryAfterMs()
+                        )
+                ));
+    }
+
+    // 同一会话上一轮未结束（reject 策略或排队超时）：409
+    private ResponseEntity<?> sessionBusy(TurnSequencer.BusyException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Map.of(
+                        "status", "fail",
+                        "msg", e.getMessage(),
+                        "data", Map.of("reason", e.getReason())
+                ));
+    }
+
+    // 模型在途请求超出自适应上限：503 快速失败，客户端稍后重试
+    private ResponseEntity<?> serviceUnavailable(AdaptiveConcurrencyLimiter.LimitExceededException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Map.of(
+                        "status", "fail",
+                        "msg", e.getMessage(),
+                        "data", Map.of("limit", e.getLimit())
+                ));
+    }
+
+    // 模型熔断打开：503 快速失败，熔断进入半开前不必重试
+    private ResponseEntity<?> circuitOpen(CircuitBreakerRegistry.CircuitOpenException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Map.of(
+                        "status", "fail",
+                        "msg", e.getMessage(),
+                        "data", Map.of("reason", "circuit_open")
+                ));
+    }
 }
@@ -8,4 +8,11 @@ import lombok.Data;
 public class ChatMessageDto {
     private int sessionId;
     private String message;
+    // 是否合并发送 SSE 帧，为空时使用服务端配置；需要逐 token 帧的客户端传 false
+    private Boolean coalesce;
+    // 下发协议：legacy（默认，透传供应商 JSON）或 compact-v1
+    private String protocol;
+    // 幂等键（也可用 Idempotency-Key 请求头传入）：同一会话下重复的请求不再保存消息、调用模型，
+    // 而是接入进行中的回答或直接返回已完成的结果
+    private String idempotencyKey;
 }
@@ -0,0 +1,15 @@
+package ben.chatanon.entity.dto;
+
+// 角色相关提示词的查询投影（角色提示词、背景提示词、Live2D 提示词）
+public interface RolePromptDto {
+    Integer getRoleId();
+
+    String getRolePrompt();
+
+    // JSON 数组字符串（JSON_ARRAYAGG），没有背景标签时为 null
+    String getBackgroundPrompts();
+
+    Integer getLive2dId();
+
+    String getLive2dPrompt();
+}
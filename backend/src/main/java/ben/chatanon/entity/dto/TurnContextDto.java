@@ -0,0 +1,28 @@
+package ben.chatanon.entity.dto;
+
+// 单轮聊天所需上下文的查询投影（会话与模型一次查出，提示词走 RolePromptCache）
+public interface TurnContextDto {
+    Integer getSessionId();
+
+    Integer getUserId();
+
+    String getUserType();
+
+    Integer getRoleId();
+
+    Integer getModelId();
+
+    String getModelName();
+
+    String getModelVersion();
+
+    String getApiURL();
+
+    String getApiKey();
+
+    Integer getMaxTokens();
+
+    Integer getTemperature();
+
+    String getModelGroup();
+}
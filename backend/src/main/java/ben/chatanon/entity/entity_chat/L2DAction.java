@@ -27,4 +27,8 @@ public class L2DAction {
 
     @Column(name = "motionPath", nullable = false)
     private String motionPath;
+
+    // 本地情感分类词表：关键词 / emoji，逗号或换行分隔，可写 "关键词:权重"
+    @Column(name = "keywords", columnDefinition = "TEXT")
+    private String keywords;
 }
@@ -35,4 +35,19 @@ public class Messages {
 
     @Column(name = "emotion")
     private String emotion;
+
+    // 客户端中途断开，回答只生成了一部分
+    @Column(name = "truncated", nullable = false)
+    private boolean truncated;
+
+    // 供应商返回的本轮 usage（只记在 assistant 消息上，供应商未返回时为空）
+    @Column(name = "promptTokens")
+    private Integer promptTokens;
+
+    @Column(name = "completionTokens")
+    private Integer completionTokens;
+
+    // 本轮实际使用的模型（模型组内路由到的成员，只记在 assistant 消息上）
+    @Column(name = "modelId")
+    private Integer modelId;
 }
@@ -31,4 +31,9 @@ public class Models {
 
     @Column(name = "temperature", nullable = false)
     private int temperature;
+
+    // 模型组：同一 modelVersion 的多个部署（不同 apiURL / 地区）填同一个组名，
+    // 绑定到组内任一成员的会话每轮按延迟和错误率在组内挑选成员，为空表示不分组
+    @Column(name = "modelGroup")
+    private String modelGroup;
 }
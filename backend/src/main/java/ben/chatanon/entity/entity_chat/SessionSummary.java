@@ -0,0 +1,34 @@
+package ben.chatanon.entity.entity_chat;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Getter
+@Setter
+@Table(name = "session_summary")
+public class SessionSummary {
+    @Id
+    @Column(name = "sessionId")
+    private int sessionId;
+
+    @Column(name = "summary", nullable = false, columnDefinition = "LONGTEXT")
+    private String summary;
+
+    // 摘要已覆盖到的最后一条消息 id（之后的消息仍以原文发送）
+    @Column(name = "lastMessageId", nullable = false)
+    private int lastMessageId;
+
+    @Column(name = "tokens", nullable = false)
+    private int tokens;
+
+    @Version
+    @Column(name = "version", nullable = false)
+    private Integer version;
+
+    @Column(name = "updatedAt", nullable = false)
+    private LocalDateTime updatedAt;
+}
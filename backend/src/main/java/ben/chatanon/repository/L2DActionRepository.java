@@ -4,6 +4,8 @@ import ben.chatanon.entity.entity_chat.L2DAction;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 
+import java.util.List;
+
 public interface L2DActionRepository extends CrudRepository<L2DAction, Integer> {
     @Query(value = """
             SELECT *
@@ -11,4 +13,11 @@ public interface L2DActionRepository extends CrudRepository<L2DAction, Integer>
             WHERE actionCode = :emotion
             """, nativeQuery = true)
     L2DAction findByEmotion(String emotion);
+
+    @Query(value = """
+            SELECT *
+            FROM live2daction
+            WHERE live2dId = :live2dId
+            """, nativeQuery = true)
+    List<L2DAction> findByLive2dId(int live2dId);
 }
@@ -16,5 +16,33 @@ public interface MessageRepository extends JpaRepository<Messages, Integer> {
             """, nativeQuery = true)
     List<Messages> findBySessionIdOrderByCreatedAtAsc(int sessionId);
 
+    @Query(value = """
+            SELECT *
+            FROM messages
+            WHERE sessionId = :sessionId
+                AND messageId > :afterMessageId
+            ORDER BY createdAt DESC, messageId DESC
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<Messages> findRecentBySessionId(int sessionId, int afterMessageId, int limit);
+
+    @Query(value = """
+            SELECT COUNT(*)
+            FROM messages
+            WHERE sessionId = :sessionId
+                AND messageId > :afterMessageId
+            """, nativeQuery = true)
+    int countBySessionIdAfter(int sessionId, int afterMessageId);
+
+    @Query(value = """
+            SELECT *
+            FROM messages
+            WHERE sessionId = :sessionId
+                AND messageId > :afterMessageId
+            ORDER BY createdAt ASC, messageId ASC
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<Messages> findOldestBySessionIdAfter(int sessionId, int afterMessageId, int limit);
+
     void deleteBySession(Sessions session);
 }
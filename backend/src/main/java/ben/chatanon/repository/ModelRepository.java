@@ -3,8 +3,12 @@ package ben.chatanon.repository;
 import ben.chatanon.entity.entity_chat.Models;
 import org.springframework.data.jpa.repository.JpaRepository;
 
+import java.util.List;
+
 public interface ModelRepository extends JpaRepository<Models, Integer> {
     Models findByModelId(int modelId);
 
     Models findByModelName(String modelName);
+
+    List<Models> findByModelGroup(String modelGroup);
 }
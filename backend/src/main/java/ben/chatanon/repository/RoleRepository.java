@@ -1,5 +1,6 @@
 package ben.chatanon.repository;
 
+import ben.chatanon.entity.dto.RolePromptDto;
 import ben.chatanon.entity.entity_role.Roles;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
@@ -78,4 +79,20 @@ public interface RoleRepository extends JpaRepository<Roles, Long> {
             WHERE rh.userId = :userId
             """, nativeQuery = true)
     List<Roles> findHistoryList(int userId);
+
+    @Query(value = """
+            SELECT r.roleId AS roleId,
+                   r.prompt AS rolePrompt,
+                   (SELECT JSON_ARRAYAGG(rcs.backgroundPrompt)
+                    FROM role_category rc
+                    JOIN rolecategories rcs ON rc.roleTagId = rcs.roleTagId
+                    WHERE rc.roleId = r.roleId) AS backgroundPrompts,
+                   l.live2dId AS live2dId,
+                   l.prompt AS live2dPrompt
+            FROM roles r
+            LEFT JOIN live2dmodel l ON l.roleId = r.roleId
+            WHERE r.roleId = :roleId
+            LIMIT 1
+            """, nativeQuery = true)
+    RolePromptDto findRolePrompts(int roleId);
 }
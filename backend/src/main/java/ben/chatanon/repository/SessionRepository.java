@@ -1,5 +1,6 @@
 package ben.chatanon.repository;
 
+import ben.chatanon.entity.dto.TurnContextDto;
 import ben.chatanon.entity.entity_chat.Sessions;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
@@ -15,4 +16,25 @@ public interface SessionRepository extends JpaRepository<Sessions, Integer> {
     List<Sessions> findAllByUserId(int userId);
 
     Sessions getSessionsBySessionId(int sessionId);
+
+    @Query(value = """
+            SELECT s.sessionId AS sessionId,
+                   s.userId AS userId,
+                   u.userType AS userType,
+                   s.roleId AS roleId,
+                   m.modelId AS modelId,
+                   m.modelName AS modelName,
+                   m.modelVersion AS modelVersion,
+                   m.apiURL AS apiURL,
+                   m.apiKey AS apiKey,
+                   m.maxTokens AS maxTokens,
+                   m.temperature AS temperature,
+                   m.modelGroup AS modelGroup
+            FROM sessions s
+            JOIN models m ON s.modelId = m.modelId
+            JOIN users u ON s.userId = u.userId
+            WHERE s.sessionId = :sessionId
+            LIMIT 1
+            """, nativeQuery = true)
+    TurnContextDto findTurnContext(int sessionId);
 }
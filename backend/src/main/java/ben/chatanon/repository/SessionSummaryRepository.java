@@ -0,0 +1,8 @@
+package ben.chatanon.repository;
+
+import ben.chatanon.entity.entity_chat.SessionSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface SessionSummaryRepository extends JpaRepository<SessionSummary, Integer> {
+    SessionSummary findBySessionId(int sessionId);
+}
@@ -0,0 +1,155 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 按模型自适应并发上限（梯度算法）：根据观测到的首字节延迟动态调整每个模型的在途请求上限
+// 短期延迟明显高于长期基线说明供应商开始排队，按比例收缩上限；延迟平稳时上限缓慢增长（每次加 sqrt(limit)）
+// 供应商返回 429 / 5xx 或超时时按 backoffRatio 乘性收缩；超出上限的请求立即拒绝，不再排队等待
+@Service
+public class AdaptiveConcurrencyLimiter {
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Integer, ModelLimit> limits = new ConcurrentHashMap<>();
+
+    // 超出当前上限时抛出
+    public static class LimitExceededException extends RuntimeException {
+        private final int limit;
+
+        public LimitExceededException(String model, int limit) {
+            super("模型繁忙，请稍后再试（" + model + "）");
+            this.limit = limit;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+    }
+
+    // 一次调用占用的并发名额：首字节到达时 onSuccess 上报延迟，供应商限流 / 出错时 onDropped，
+    // 调用结束时 release（均可重复调用，只生效一次）
+    public static final class Token {
+        private final ModelLimit limit;
+        private final int inflightAtStart;
+        private final AtomicBoolean sampled = new AtomicBoolean(false);
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Token(ModelLimit limit, int inflightAtStart) {
+            this.limit = limit;
+            this.inflightAtStart = inflightAtStart;
+        }
+
+        public void onSuccess(long latencyNanos) {
+            if (limit != null && sampled.compareAndSet(false, true)) {
+                limit.onSample(latencyNanos, inflightAtStart);
+            }
+        }
+
+        public void onDropped() {
+            if (limit != null && sampled.compareAndSet(false, true)) {
+                limit.onDropped();
+            }
+        }
+
+        public void release() {
+            if (limit != null && released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        }
+    }
+
+    private static final Token NOOP = new Token(null, 0);
+
+    // 占用名额；超出当前上限时抛出 LimitExceededException
+    public Token acquire(Models model) {
+        if (!chatProperties.getConcurrency().isEnabled()) {
+            return NOOP;
+        }
+        ModelLimit limit = limits.computeIfAbsent(model.getModelId(), id -> new ModelLimit(model.getModelName()));
+        int inflight = limit.tryAcquire();
+        if (inflight < 0) {
+            meterRegistry.counter("chat.concurrency.rejected", "model", model.getModelName()).increment();
+            throw new LimitExceededException(model.getModelVersion(), limit.currentLimit());
+        }
+        return new Token(limit, inflight);
+    }
+
+    // 单个模型的上限状态
+    private final class ModelLimit {
+        private double limit;
+        private int inflight;
+        // 延迟的短期 / 长期指数移动平均（纳秒）
+        private double shortRtt;
+        private double longRtt;
+
+        private ModelLimit(String model) {
+            ChatProperties.Concurrency config = chatProperties.getConcurrency();
+            this.limit = config.getInitialLimit();
+            Gauge.builder("chat.concurrency.limit", this, ModelLimit::currentLimit)
+                    .tag("model", model).register(meterRegistry);
+            Gauge.builder("chat.concurrency.inflight", this, ModelLimit::currentInflight)
+                    .tag("model", model).register(meterRegistry);
+        }
+
+        // 返回占用后的在途数，超出上限返回 -1
+        private synchronized int tryAcquire() {
+            if (inflight >= (int) limit) {
+                return -1;
+            }
+            return ++inflight;
+        }
+
+        private synchronized void release() {
+            inflight--;
+        }
+
+        private synchronized void onSample(long rtt, int inflightAtStart) {
+            ChatProperties.Concurrency config = chatProperties.getConcurrency();
+            double shortAlpha = 2.0 / (config.getShortWindow() + 1);
+            double longAlpha = 2.0 / (config.getLongWindow() + 1);
+            shortRtt = shortRtt == 0 ? rtt : shortRtt * (1 - shortAlpha) + rtt * shortAlpha;
+            longRtt = longRtt == 0 ? rtt : longRtt * (1 - longAlpha) + rtt * longAlpha;
+            // 延迟回落后长期基线偏高，加速向短期靠拢，避免基线慢慢漂高
+            if (longRtt / shortRtt > 2) {
+                longRtt *= 0.95;
+            }
+            // 在途请求远低于上限时延迟不能说明上限是否合适，不调整
+            if (inflightAtStart < limit / 2) {
+                return;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, config.getRttTolerance() * longRtt / shortRtt));
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            newLimit = limit * (1 - config.getSmoothing()) + newLimit * config.getSmoothing();
+            limit = clamp(newLimit, config);
+        }
+
+        private synchronized void onDropped() {
+            ChatProperties.Concurrency config = chatProperties.getConcurrency();
+            limit = clamp(limit * config.getBackoffRatio(), config);
+        }
+
+        private synchronized int currentLimit() {
+            return (int) limit;
+        }
+
+        private synchronized int currentInflight() {
+            return inflight;
+        }
+
+        private double clamp(double value, ChatProperties.Concurrency config) {
+            return Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), value));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 准入控制：按用户（分用户类型）和模型做令牌桶限速 + 并发数上限
+// 状态放在 Redis，多节点共享；每次检查是一次 Lua 脚本调用（一次往返）
+@Service
+public class AdmissionControlService {
+    private static final String KEY_PREFIX = "chat:admission:";
+    private static final String[] REASONS = {"none", "user_rate", "model_rate", "user_concurrency", "model_concurrency"};
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 脚本按 SHA 调用（EVALSHA），脚本内容只在 Redis 未缓存时发送
+    @SuppressWarnings("rawtypes")
+    private final DefaultRedisScript<List> acquireScript = script("lua/admission_acquire.lua", List.class);
+    private final DefaultRedisScript<Long> releaseScript = script("lua/admission_release.lua", Long.class);
+
+    // 被拒绝时抛出，retryAfterMs 为建议的重试等待时间
+    public static class RejectedException extends RuntimeException {
+        private final String reason;
+        private final long retryAfterMs;
+
+        public RejectedException(String reason, long retryAfterMs) {
+            super("请求过于频繁，请稍后再试（" + reason + "）");
+            this.reason = reason;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+
+    // 已占用的并发许可，请求结束时归还（可重复调用）
+    public interface Permit {
+        void release();
+    }
+
+    private static final Permit NOOP = () -> {
+    };
+
+    // 检查并占用；被拒绝时抛出 RejectedException
+    @SuppressWarnings("unchecked")
+    public Permit acquire(TurnContextService.TurnContext turn) {
+        ChatProperties.Admission config = chatProperties.getAdmission();
+        if (!config.isEnabled()) {
+            return NOOP;
+        }
+
+        String tier = turn.userTier() == null ? "user" : turn.userTier();
+        String model = turn.model().getModelVersion();
+        ChatProperties.Limit userLimit = config.getTiers().getOrDefault(tier, config.getDefaultTier());
+        ChatProperties.Limit modelLimit = config.getModels().getOrDefault(model, config.getDefaultModel());
+
+        List<String> keys = List.of(
+                KEY_PREFIX + "bucket:user:" + turn.userId(),
+                KEY_PREFIX + "bucket:model:" + turn.model().getModelId(),
+                KEY_PREFIX + "inflight:user:" + turn.userId(),
+                KEY_PREFIX + "inflight:model:" + turn.model().getModelId()
+        );
+        String permitId = UUID.randomUUID().toString();
+
+        long start = System.nanoTime();
+        List<Long> result;
+        try {
+            result = redisTemplate.execute(acquireScript, keys,
+                    String.valueOf(userLimit.getRatePerSecond()),
+                    String.valueOf(Math.max(1, userLimit.getBurst())),
+                    String.valueOf(modelLimit.getRatePerSecond()),
+                    String.valueOf(Math.max(1, modelLimit.getBurst())),
+                    String.valueOf(userLimit.getMaxConcurrent()),
+                    String.valueOf(modelLimit.getMaxConcurrent()),
+                    permitId,
+                    String.valueOf(config.getLeaseMs()),
+                    String.valueOf(config.getBusyRetryAfterMs()));
+        } catch (Exception e) {
+            System.out.println("准入检查失败: " + e.getMessage());
+            record("error", "redis", tier, model, start);
+            if (config.isFailOpen()) {
+                return NOOP;
+            }
+            throw new RejectedException("unavailable", config.getBusyRetryAfterMs());
+        }
+
+        int code = result == null || result.isEmpty() ? 0 : result.get(0).intValue();
+        if (code != 0) {
+            String reason = code < REASONS.length ? REASONS[code] : "unknown";
+            record("rejected", reason, tier, model, start);
+            throw new RejectedException(reason, result.size() > 1 ? result.get(1) : config.getBusyRetryAfterMs());
+        }
+        record("admitted", "none", tier, model, start);
+
+        List<String> inflightKeys = keys.subList(2, 4);
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                redisTemplate.execute(releaseScript, inflightKeys, permitId);
+            } catch (Exception e) {
+                // 归还失败由租约到期兜底
+                System.out.println("归还并发许可失败: " + e.getMessage());
+            }
+        };
+    }
+
+    private static <T> DefaultRedisScript<T> script(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private void record(String result, String reason, String tier, String model, long startNanos) {
+        meterRegistry.counter("chat.admission", "result", result, "reason", reason, "tier", tier, "model", model)
+                .increment();
+        Timer.builder("chat.admission.latency")
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
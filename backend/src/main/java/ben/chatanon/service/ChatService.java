@@ -1,27 +1,56 @@
 package ben.chatanon.service;
 
+import ben.chatanon.config.ChatProperties;
 import ben.chatanon.entity.dto.ChatMessageDto;
 import ben.chatanon.entity.dto.EditSessionDto;
 import ben.chatanon.entity.dto.NewSessionDto;
 import ben.chatanon.entity.entity_chat.*;
 import ben.chatanon.entity.vo.*;
 import ben.chatanon.repository.*;
+import ben.chatanon.util.ChatStreamProtocol;
+import ben.chatanon.util.SseChunkParser;
+import ben.chatanon.util.SseFrameBatcher;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import okhttp3.*;
 import okio.BufferedSource;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
-
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 @Service
 public class ChatService {
@@ -41,113 +70,389 @@ public class ChatService {
     private RoleRepository roleRepository;
 
     @Autowired
-    private RoleCategoriesRepository roleCategoriesRepository;
+    private L2DActionRepository l2DActionRepository;
 
     @Autowired
-    private L2DModelRepository l2DModelRepository;
+    private ChatProperties chatProperties;
 
     @Autowired
-    private L2DActionRepository l2DActionRepository;
+    private ThreadPoolTaskExecutor chatTaskExecutor;
+
+    @Autowired
+    private ContextWindowService contextWindowService;
+
+    @Autowired
+    private TokenCounter tokenCounter;
+
+    @Autowired
+    private SummaryService summaryService;
+
+    @Autowired
+    private HistoryCacheService historyCacheService;
+
+    @Autowired
+    private MessageWriteBehindService messageWriteBehindService;
+
+    @Autowired
+    private AdmissionControlService admissionControlService;
+
+    @Autowired
+    private EmotionService emotionService;
+
+    @Autowired
+    private TurnContextService turnContextService;
+
+    @Autowired
+    private UpstreamClientRegistry upstreamClientRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    @Autowired
+    private GenerationStreamService generationStreamService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private TurnSequencer turnSequencer;
+
+    @Autowired
+    private ModelCallService modelCallService;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
 
-    // HTTP client & mapper
-    private final OkHttpClient okHttpClient = new OkHttpClient();
+    @Autowired
+    private AdaptiveConcurrencyLimiter adaptiveConcurrencyLimiter;
+
+    // mapper
     private final ObjectMapper mapper = new ObjectMapper();
 
-    // 获取情感数据
-    private String detectEmotion(List<Map<String, String>> context, Models model, int live2dId) throws Exception {
-        // 获取聊天记录（去除最初的角色扮演系统提示词）
-        // 移除所有 system，只保留 user / assistant
-        List<Map<String, String>> cleanText = context.stream()
-                .filter(m -> !"system".equals(m.get("role")))
-                .toList();
+    // 响应式接口按行切分上游响应
+    private static final StringDecoder LINE_DECODER = StringDecoder.allMimeTypes(List.of("\n"), true);
 
-        // 构造情感判断请求
-        Map<String, Object> req = new HashMap<>();
-        req.put("model", model.getModelVersion());
-        req.put("messages", List.of(
-                // 新的情感判断 system prompt（来自 Live2D）
-                Map.of(
-                        "role", "system",
-                        "content", l2DModelRepository.findPromptById(live2dId)
-                ),
-                // 把上下文整体作为 user 内容传入
-                Map.of(
-                        "role", "user",
-                        "content", mapper.writeValueAsString(cleanText)
-                )
+    // 组装上下文：system 提示词 + 会话摘要 + 摘要之后的最近消息（按 token 预算裁剪）
+    private List<Map<String, String>> buildContext(List<Map<String, String>> systemMessages, int sessionId, Models model) {
+        int afterMessageId = addSummary(systemMessages, sessionId);
+        return contextWindowService.assemble(systemMessages, loadRecentHistory(sessionId, afterMessageId), model);
+    }
+
+    // 有会话摘要时作为 system 消息加入，返回摘要覆盖到的最后一条消息 id
+    private int addSummary(List<Map<String, String>> systemMessages, int sessionId) {
+        SessionSummary summary = summaryService.getSummary(sessionId);
+        if (summary == null) {
+            return 0;
+        }
+        systemMessages.add(Map.of(
+                "role", "system",
+                "content", "以下是此前对话的摘要：\n" + summary.getSummary()
         ));
-        req.put("max_tokens", 100);
-        req.put("stream", false);
-        req.put("temperature", 0);
-
-        Request request = new Request.Builder()
-                .url(model.getApiURL())
-                .addHeader("Authorization", "Bearer " + model.getApiKey())
-                .post(RequestBody.create(
-                        mapper.writeValueAsString(req),
-                        MediaType.parse("application/json")
-                ))
-                .build();
+        return summary.getLastMessageId();
+    }
 
-        // 同步请求情感判断
-        try (Response response = okHttpClient.newCall(request).execute()) {
+    // 取摘要之后的最近历史消息（按时间正序）：优先读 Redis 热缓存，未命中回源 MySQL，再补上尚未落库的消息
+    private List<Messages> loadRecentHistory(int sessionId, int afterMessageId) {
+        // pending 快照必须在读缓存之前取，见 MessageWriteBehindService.pendingOf
+        List<Messages> pending = messageWriteBehindService.pendingOf(sessionId);
+        return withPending(historyCacheService.getRecent(sessionId, afterMessageId), pending, afterMessageId);
+    }
 
-            if (!response.isSuccessful() || response.body() == null) {
-                return "default";
+    private List<Messages> withPending(List<Messages> cached, List<Messages> pending, int afterMessageId) {
+        List<Messages> history = new ArrayList<>(cached);
+        int lastId = history.isEmpty() ? afterMessageId : history.get(history.size() - 1).getMessageId();
+        for (Messages m : pending) {
+            // 取快照之后已落库并写入缓存的跳过，未落库的 messageId 为 0
+            if (m.getMessageId() == 0 || m.getMessageId() > lastId) {
+                history.add(m);
             }
+        }
+        return history;
+    }
 
-            String body = response.body().string();
+    // assistant 回答入库，同时追加到热缓存并按需触发后台摘要
+    // promptTokens / completionTokens 为供应商返回的 usage，-1 表示未返回
+    private void saveAssistantMessage(Sessions session, Models model, String content, String emotion, boolean truncated,
+                                      int promptTokens, int completionTokens) {
+        Messages assistantMsg = new Messages();
+        assistantMsg.setSession(session);
+        assistantMsg.setRole(roleType.assistant);
+        assistantMsg.setContent(content);
+        // 供应商给出的 completion 数是准确值，没有时用本地分词器计数
+        assistantMsg.setTokens(completionTokens >= 0 && !truncated
+                ? completionTokens
+                : tokenCounter.count(content, model.getModelVersion()));
+        assistantMsg.setCreatedAt(LocalDateTime.now());
+        assistantMsg.setEmotion(emotion);
+        assistantMsg.setTruncated(truncated);
+        assistantMsg.setModelId(model.getModelId());
+        if (promptTokens >= 0) {
+            assistantMsg.setPromptTokens(promptTokens);
+        }
+        if (completionTokens >= 0) {
+            assistantMsg.setCompletionTokens(completionTokens);
+        }
+        recordUsage(model, promptTokens, completionTokens);
+        messageWriteBehindService.save(assistantMsg);
+        summaryService.scheduleIfNeeded(session.getSessionId(), model);
+    }
 
-            // 解析模型返回
-            String content = mapper.readTree(body)
-                    .path("choices").get(0)
-                    .path("message")
-                    .path("content")
-                    .asText()
-                    .trim();
+    // 按模型记录每轮 usage
+    private void recordUsage(Models model, int promptTokens, int completionTokens) {
+        if (promptTokens >= 0) {
+            meterRegistry.summary("chat.usage.tokens", "type", "prompt", "model", model.getModelVersion())
+                    .record(promptTokens);
+        }
+        if (completionTokens >= 0) {
+            meterRegistry.summary("chat.usage.tokens", "type", "completion", "model", model.getModelVersion())
+                    .record(completionTokens);
+        }
+    }
+
+    // 客户端断开后的宽限期：到期时没有续传接入才取消生成（已生成的部分由取消路径按中断保存），
+    // 有续传接入则继续生成，下一个宽限期后再检查
+    private void cancelIfAbandoned(GenerationStreamService.Generation generation, BooleanSupplier done,
+                                   Runnable cancel, long graceMs) {
+        chatTaskScheduler.schedule(() -> {
+            if (done.getAsBoolean()) {
+                return;
+            }
+            if (generationStreamService.isAttached(generation.getId())) {
+                cancelIfAbandoned(generation, done, cancel, graceMs);
+                return;
+            }
+            meterRegistry.counter("chat.stream.grace.cancelled").increment();
+            cancel.run();
+        }, Instant.now().plusMillis(graceMs));
+    }
+
+    // 流式下发：每帧先写入续传 Stream 拿到 SSE id，再交给合并发送器；加锁保证帧序号与下发顺序一致
+    // 客户端已断开时只记录不下发；断开后继续生成（含宽限期内）时发送失败不中断读取上游
+    private static final class StreamSink {
+        private final GenerationStreamService.Generation generation;
+        private final SseFrameBatcher batcher;
+        private final AtomicBoolean clientGone;
+        private final boolean detach;
+        private final Runnable onSendFailure;
+
+        private StreamSink(GenerationStreamService.Generation generation, SseFrameBatcher batcher,
+                           AtomicBoolean clientGone, boolean detach, Runnable onSendFailure) {
+            this.generation = generation;
+            this.batcher = batcher;
+            this.clientGone = clientGone;
+            this.detach = detach;
+            this.onSendFailure = onSendFailure;
+        }
 
-            // 兜底处理（极其重要）
-            if (content.isEmpty()) {
-                return "default";
+        synchronized void emit(ChatStreamProtocol.Frame frame, int bytes, boolean flush) throws IOException {
+            String id = generation.record(frame);
+            if (clientGone.get()) {
+                return;
             }
+            try {
+                batcher.send(frame.toEmitterEvent(id), bytes);
+                if (flush) {
+                    batcher.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                onSendFailure.run();
+                if (!detach) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // 下发情感事件（保证只发送一次），立即 flush
+    private void sendEmotion(StreamSink sink, ChatStreamProtocol protocol, String emotion, AtomicBoolean emotionSent) {
+        if (emotion == null || !emotionSent.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sink.emit(protocol.emotion(emotion), emotion.length(), true);
+        } catch (Exception ignored) {
+            // 客户端已断开或流已结束，主流程自行处理
+        }
+    }
+
+    // 流式请求失败：compact 协议下发 error 事件后正常结束，legacy 保持原有行为
+    // error 帧同时写入续传 Stream，续传中的客户端也能收到结束
+    private void failStream(SseEmitter emitter, ChatStreamProtocol protocol,
+                            GenerationStreamService.Generation generation, Throwable e) {
+        ChatStreamProtocol.Frame frame = protocol.error(e.getMessage());
+        String id = generation == null ? null : generation.record(frame);
+        if (protocol == ChatStreamProtocol.LEGACY) {
+            emitter.completeWithError(e);
+            return;
+        }
+        try {
+            emitter.send(frame.toEmitterEvent(id));
+            emitter.complete();
+        } catch (Exception ex) {
+            emitter.completeWithError(e);
+        }
+    }
 
-            // 只取第一行，防止模型多说废话
-            int newlineIndex = content.indexOf('\n');
-            if (newlineIndex != -1) {
-                content = content.substring(0, newlineIndex).trim();
+    // 同一会话按顺序执行：等上一轮结束（或按策略拒绝 / 取消上一轮）；被拒绝、排队超时或放弃排队时释放幂等键
+    // 返回的 future 未完成表示正在排队，流式接口先返回 emitter / Flux，上一轮结束后再开始本轮
+    private CompletableFuture<TurnSequencer.Slot> beginTurn(int sessionId, IdempotencyService.Claim claim) {
+        CompletableFuture<TurnSequencer.Slot> queued = turnSequencer.begin(sessionId);
+        queued.whenComplete((slot, e) -> {
+            if (e != null) {
+                idempotencyService.release(claim);
             }
+        });
+        return queued;
+    }
 
-            return content;
+    // 本轮占用的资源：会话、准入许可、模型并发名额，本轮结束时一起归还（可重复调用）
+    private record TurnPermit(TurnSequencer.Slot slot, AdmissionControlService.Permit admission,
+                              AdaptiveConcurrencyLimiter.Token concurrency) {
+        void release() {
+            concurrency.release();
+            admission.release();
+            slot.release();
         }
     }
 
+    // 模型熔断 + 准入控制 + 模型自适应并发上限；被拒绝时释放会话和幂等键，客户端可用同一个键重试
+    private TurnPermit acquire(TurnContextService.TurnContext turn, IdempotencyService.Claim claim,
+                               TurnSequencer.Slot slot) {
+        AdmissionControlService.Permit permit = null;
+        try {
+            // 熔断打开时在保存消息之前直接失败
+            circuitBreakerRegistry.check(turn.model());
+            permit = admissionControlService.acquire(turn);
+            return new TurnPermit(slot, permit, adaptiveConcurrencyLimiter.acquire(turn.model()));
+        } catch (CircuitBreakerRegistry.CircuitOpenException | AdmissionControlService.RejectedException
+                 | AdaptiveConcurrencyLimiter.LimitExceededException e) {
+            if (permit != null) {
+                permit.release();
+            }
+            slot.release();
+            idempotencyService.release(claim);
+            throw e;
+        }
+    }
+
+    // 首字节延迟作为模型并发上限的样本；供应商限流（429）或 5xx 时收缩上限
+    private static void sampleLatency(AdaptiveConcurrencyLimiter.Token token, int status, long latencyNanos) {
+        if (status == 429 || status >= 500) {
+            token.onDropped();
+        } else {
+            token.onSuccess(latencyNanos);
+        }
+    }
+
+    private static void sampleLatency(AdaptiveConcurrencyLimiter.Token token, Response response) {
+        sampleLatency(token, response.code(),
+                TimeUnit.MILLISECONDS.toNanos(response.receivedResponseAtMillis() - response.sentRequestAtMillis()));
+    }
+
+    // 重复的流式请求：把原回答的帧（续传回放或已完成的结果）转发给当前连接
+    private void attachDuplicate(SseEmitter emitter, ChatStreamProtocol protocol, IdempotencyService.Claim claim) {
+        Disposable subscription = idempotencyService.replay(protocol, claim).subscribe(
+                event -> {
+                    try {
+                        emitter.send(new ChatStreamProtocol.Frame(event.event(), event.data(), false)
+                                .toEmitterEvent(event.id()));
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                },
+                emitter::completeWithError,
+                emitter::complete);
+        emitter.onCompletion(subscription::dispose);
+    }
+
     // 流式聊天
     public SseEmitter sendMessageStream(ChatMessageDto dto) {
-        // 暂设置为永不超时
-        SseEmitter emitter = new SseEmitter(0L);
+        // 超时时间可配置，0 为永不超时
+        SseEmitter emitter = new SseEmitter(chatProperties.getStream().getEmitterTimeoutMs());
+        ChatStreamProtocol protocol = ChatStreamProtocol.of(dto.getProtocol());
 
-        // 查 model
-        Models model = modelRepository.findByModelId(
-                sessionRepository.getSessionsBySessionId(dto.getSessionId())
-                        .getModel().getModelId()
-        );
-        if (model == null) {
-            emitter.completeWithError(new RuntimeException("模型不存在"));
+        long dbStart = System.nanoTime();
+
+        // 一次查询拿到 session、model、role 提示词、背景提示词、Live2D 提示词
+        TurnContextService.TurnContext turn = turnContextService.load(dto.getSessionId());
+        if (turn == null) {
+            failStream(emitter, protocol, null, new RuntimeException("会话不存在"));
             return emitter;
         }
 
-        // 查 session
-        Sessions session = sessionRepository.getSessionsBySessionId(dto.getSessionId());
-        if (session == null) {
-            emitter.completeWithError(new RuntimeException("会话不存在"));
+        // 幂等：重复请求（相同 idempotencyKey）接入原回答，不再保存消息、调用模型
+        GenerationStreamService.Generation generation = generationStreamService.start();
+        IdempotencyService.Claim claim = idempotencyService.claim(
+                dto.getSessionId(), dto.getIdempotencyKey(), generation.getId());
+        if (claim.isDuplicate()) {
+            attachDuplicate(emitter, protocol, claim);
             return emitter;
         }
 
-        // 查 role（拿角色对应的提示词）
-        String systemPrompt = session.getRole().getPrompt();
+        // 会话空闲（或直接被拒绝）时在当前线程开始本轮，拒绝由 controller 直接返回 409 / 429
+        CompletableFuture<TurnSequencer.Slot> queued = beginTurn(dto.getSessionId(), claim);
+        if (queued.isDone()) {
+            startStreamTurn(emitter, protocol, dto, turn, generation, claim, TurnSequencer.await(queued), dbStart);
+            return emitter;
+        }
+
+        // 排队中：先返回 emitter，不占用请求线程；上一轮结束后在 chatTaskExecutor 上开始本轮，
+        // 排队超时或准入被拒绝时以 error 帧结束，客户端断开时放弃排队
+        Runnable abandon = () -> queued.cancel(false);
+        emitter.onTimeout(abandon);
+        emitter.onError(e -> abandon.run());
+        emitter.onCompletion(abandon);
+        queued.whenCompleteAsync((slot, e) -> {
+            if (e instanceof CancellationException) {
+                return;
+            }
+            try {
+                if (e != null) {
+                    throw e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                }
+                startStreamTurn(emitter, protocol, dto, turn, generation, claim, slot, dbStart);
+            } catch (Throwable ex) {
+                failStream(emitter, protocol, generation, ex);
+            }
+        }, chatTaskExecutor);
+        return emitter;
+    }
+
+    // 准入控制：超出用户 / 模型的速率或并发上限时拒绝（RejectedException 等由 controller 转为 429 / 503）
+    private void startStreamTurn(SseEmitter emitter, ChatStreamProtocol protocol, ChatMessageDto dto,
+                                 TurnContextService.TurnContext turn, GenerationStreamService.Generation generation,
+                                 IdempotencyService.Claim claim, TurnSequencer.Slot slot, long dbStart) {
+        TurnPermit permit = acquire(turn, claim, slot);
+        AtomicBoolean finished = new AtomicBoolean(false);
+        // 拿到许可后、交给上游回调之前出错（保存消息、拼上下文等）时归还许可和幂等键，否则会话一直被占用
+        try {
+            streamTurn(emitter, protocol, dto, turn, generation, claim, permit, finished, dbStart);
+        } catch (RuntimeException e) {
+            if (finished.compareAndSet(false, true)) {
+                permit.release();
+                idempotencyService.release(claim);
+                failStream(emitter, protocol, generation, e);
+            }
+        }
+    }
+
+    // 流式聊天的一轮：保存用户消息、拼上下文、调用模型并转发
+    // 许可在回答结束、失败或中断保存（saveTruncated）之后归还，不随 emitter 结束归还，
+    // 否则客户端断开后同一会话的下一轮可能在部分回答入库之前开始
+    private void streamTurn(SseEmitter emitter, ChatStreamProtocol protocol, ChatMessageDto dto,
+                            TurnContextService.TurnContext turn, GenerationStreamService.Generation generation,
+                            IdempotencyService.Claim claim, TurnPermit permit, AtomicBoolean finished,
+                            long dbStart) {
+        // 客户端断开后是否继续生成（帧写入 Redis，等待 Last-Event-ID 续传）；否则在宽限期内没有续传接入时取消
+        boolean detach = generationStreamService.detachOnDisconnect();
+        long graceMs = detach ? 0 : generationStreamService.disconnectGraceMs();
+        TurnSequencer.Slot slot = permit.slot();
+        Sessions session = turn.session();
+        Models model = turn.model();
 
-        // 查 roleCategory（拿角色故事背景的提示词）
-        List<String> backgroundPrompts = roleCategoriesRepository.findBackTagNamesByRoleId(session.getRole().getRoleId());
 
         // 保存用户消息到 messages 表，role = user
         Messages userMsg = new Messages();
@@ -156,63 +461,21 @@ public class ChatService {
         userMsg.setCreatedAt(LocalDateTime.now());
         userMsg.setRole(roleType.user);
         userMsg.setEmotion(null);
-        // 用 save 要比 saveAndFlush 要高效些
-        messageRepository.save(userMsg);
-
-        // 构造 messages 上下文
-        List<Map<String, String>> chatMessages = new ArrayList<>();
-
-        // 加入最初的提示词 system prompt（role & roleCategory）
-        if (backgroundPrompts != null && !backgroundPrompts.isEmpty()) {
-            for (String backgroundPrompt : backgroundPrompts) {
-                chatMessages.add(Map.of(
-                        "role", "system",
-                        "content", backgroundPrompt
-                ));
-            }
-        }
-
-        if (systemPrompt != null && !systemPrompt.isEmpty()) {
-            chatMessages.add(Map.of(
-                    "role", "system",
-                    "content", systemPrompt
-            ));
-        }
+        userMsg.setTokens(tokenCounter.count(dto.getMessage(), model.getModelVersion()));
+        // 异步批量落库，写入后本会话的读取立即可见
+        messageWriteBehindService.save(userMsg);
 
-        // 循环构建历史消息列表
-        List<Messages> history =
-                messageRepository.findBySessionIdOrderByCreatedAtAsc(session.getSessionId());
+        // 最初的提示词 system prompt（roleCategory & role），已在缓存中拼好
+        List<Map<String, String>> systemMessages = new ArrayList<>(turn.prompts().prefix());
 
-        for (Messages m : history) {
-            chatMessages.add(Map.of(
-                    "role", m.getRole().name(),
-                    "content", m.getContent()
-            ));
-        }
-
-        // 获取情感判断
-        String emotion = "";
-        int l2dId = l2DModelRepository.findByRoleId(session.getRole().getRoleId()).getLive2dId();
-        try {
-            emotion = detectEmotion(chatMessages, model, l2dId);
-        } catch (Exception ignored) {}
+        // 在模型 token 预算内，摘要 + 从最新消息往前拼接历史
+        List<Map<String, String>> chatMessages = buildContext(systemMessages, session.getSessionId(), model);
+        turnContextService.recordDbTime("stream", dbStart);
 
-        // 第一时间先把情感判断返回
-        if (emotion != null) {
-            try {
-                String emotionJson =
-                        "{\"emotion\":\"" + emotion + "\"}";
-
-                emitter.send(
-                        SseEmitter.event()
-                                .name("emotion")
-                                .data(emotionJson)
-                );
-            } catch (IOException e) {
-                emitter.completeWithError(e);
-                return emitter;
-            }
-        }
+        // 情感判断与主请求并行：先异步发起情感判断，不阻塞主请求
+        // 角色没有 Live2D 模型时直接使用 default；远程判断超时由本地词表结果兜底
+        CompletableFuture<String> emotionFuture = emotionService.detectAsync(
+                chatMessages, model, turn.prompts().live2dId(), turn.prompts().live2dPrompt());
 
         // 构建模型请求体
         Map<String, Object> req = new HashMap<>();
@@ -220,6 +483,10 @@ public class ChatService {
         req.put("messages", chatMessages);
         req.put("max_tokens", model.getMaxTokens());
         req.put("stream", true);
+        if (chatProperties.getTokens().isStreamUsage()) {
+            // 让供应商在结束前返回本轮 usage
+            req.put("stream_options", Map.of("include_usage", true));
+        }
 
         Request request;
         try {
@@ -231,82 +498,492 @@ public class ChatService {
                             body, MediaType.parse("application/json")))
                     .build();
         } catch (Exception e) {
-            emitter.completeWithError(e);
-            return emitter;
+            finished.set(true);
+            permit.release();
+            idempotencyService.release(claim);
+            failStream(emitter, protocol, generation, e);
+            return;
         }
 
         StringBuilder assistantBuffer = new StringBuilder();
 
+        // 客户端断开（关闭页面、网络切换）时：继续生成并写入续传 Stream，宽限期内没有带 Last-Event-ID 的续传接入
+        // 才取消上游请求，不再为没人看的 token 付费，已生成的部分按中断保存；
+        // 开启 continue-after-disconnect 时一直生成到结束，回答完整入库
+        ModelCallService.ModelCall upstreamCall =
+                modelCallService.streaming(model, request, UpstreamScheduler.Lane.INTERACTIVE);
+        AtomicBoolean clientGone = new AtomicBoolean(false);
+        Runnable cancelUpstream = () -> {
+            if (!finished.get() && clientGone.compareAndSet(false, true)) {
+                if (detach) {
+                    meterRegistry.counter("chat.stream.detached").increment();
+                } else if (graceMs > 0) {
+                    meterRegistry.counter("chat.stream.grace").increment();
+                    cancelIfAbandoned(generation, finished::get, upstreamCall::cancel, graceMs);
+                } else {
+                    upstreamCall.cancel();
+                }
+            }
+        };
+        emitter.onTimeout(cancelUpstream);
+        emitter.onError(e -> cancelUpstream.run());
+        emitter.onCompletion(cancelUpstream);
+        // 被同一会话的新一轮取消（cancel-previous）：停止生成，已生成的部分按中断保存
+        slot.onCancel(() -> {
+            if (finished.get()) {
+                return;
+            }
+            boolean connected = clientGone.compareAndSet(false, true);
+            upstreamCall.cancel();
+            if (connected) {
+                failStream(emitter, protocol, generation, new RuntimeException("已被同一会话的新消息取消"));
+            }
+        });
+
+        // token 帧合并发送（按请求可关闭）
+        ChatProperties.Coalesce coalesce = chatProperties.getStream().getCoalesce();
+        boolean coalesceEnabled = dto.getCoalesce() != null ? dto.getCoalesce() : coalesce.isEnabled();
+        SseFrameBatcher batcher = new SseFrameBatcher(emitter, chatTaskScheduler, coalesceEnabled,
+                coalesce.getIntervalMs(), coalesce.getMaxBytes(), cancelUpstream);
+        StreamSink sink = new StreamSink(generation, batcher, clientGone, detach || graceMs > 0, cancelUpstream);
+
+        // 情感事件只下发一次：谁先到（判断完成 / 回答结束）谁来发
+        AtomicBoolean emotionSent = new AtomicBoolean(false);
+        emotionFuture.thenAccept(emotion -> sendEmotion(sink, protocol, emotion, emotionSent));
+
+        // 断开后保存已生成的部分回答（标记 truncated），保证历史一致
+        Runnable saveTruncated = () -> {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            batcher.close();
+            permit.release();
+            String partial = assistantBuffer.toString();
+            if (!partial.isEmpty()) {
+                saveAssistantMessage(session, model, partial, emotionFuture.getNow("default"), true, -1, -1);
+            }
+            // 部分回答不作为最终结果：释放幂等键，客户端可用同一个键重新生成
+            idempotencyService.release(claim);
+            meterRegistry.counter("chat.stream.cancelled").increment();
+            // 按 max_tokens 估算节省的 token 上限
+            meterRegistry.summary("chat.stream.cancelled.tokens.saved")
+                    .record(Math.max(0, model.getMaxTokens() - tokenCounter.count(partial, model.getModelVersion())));
+        };
+
         // 火山 DeepSeek 不是标准 SSE，不能用 EventSource
         // 必须使用 OkHttp 普通流式读取
         // 使用 OkHttp 普通 Async 回调 + 逐行解析 data:
-        String finalEmotion = emotion;
-        okHttpClient.newCall(request).enqueue(new Callback() {
+        // 按 interactive 通道排队拿到供应商并发名额后再发出，收到响应头之前失败会重试
+        upstreamCall.enqueue(new Callback() {
 
             @Override
             public void onFailure(Call call, IOException e) {
-                emitter.completeWithError(e);
+                // 超时或供应商返回非 2xx（HttpStatusException）时收缩并发上限
+                if ((e instanceof InterruptedIOException && !call.isCanceled())
+                        || e instanceof ModelCallService.HttpStatusException) {
+                    permit.concurrency().onDropped();
+                }
+                if (clientGone.get()) {
+                    // 续传中的客户端收到 error 结束
+                    generation.record(protocol.error(e.getMessage()));
+                    saveTruncated.run();
+                    return;
+                }
+                finished.set(true);
+                permit.release();
+                idempotencyService.release(claim);
+                failStream(emitter, protocol, generation, e);
             }
 
             @Override
             public void onResponse(Call call, Response response) {
+                sampleLatency(permit.concurrency(), response);
                 try (BufferedSource source = response.body().source()) {
-
-                    // SSE 必须有 text/event-stream，官方应当是这样
-                    while (!source.exhausted()) {
-                        String line = source.readUtf8Line();
-
-                        // SSE data 行
-                        if (line != null && line.startsWith("data:")) {
-                            String data = line.substring(5).trim();
-
-                            // 如果是完成标识
-                            if ("[DONE]".equals(data)) {
-                                // assistant 完整回答入库
-                                Messages assistantMsg = new Messages();
-                                assistantMsg.setSession(session);
-                                assistantMsg.setRole(roleType.assistant);
-                                assistantMsg.setContent(assistantBuffer.toString());
-                                assistantMsg.setCreatedAt(LocalDateTime.now());
-                                assistantMsg.setEmotion(finalEmotion);
-                                messageRepository.saveAndFlush(assistantMsg);
-
-                                emitter.send("[DONE]");
-                                emitter.complete();
+                    // 按字节流式解析 data: 行，只取需要的字段
+                    SseChunkParser parser = new SseChunkParser();
+                    SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+                    String finishReason = null;
+                    int promptTokens = -1;
+                    int completionTokens = -1;
+
+                    while (parser.next(source, chunk)) {
+                        // 如果是完成标识
+                        if (chunk.isDone()) {
+                            if (!finished.compareAndSet(false, true)) {
                                 break;
                             }
+                            // 回答已结束，等待情感判断（最多等到截止时间）并确保已下发
+                            String finalEmotion = emotionFuture.join();
+                            sendEmotion(sink, protocol, finalEmotion, emotionSent);
+
+                            // assistant 完整回答入库
+                            saveAssistantMessage(session, model, assistantBuffer.toString(), finalEmotion, false,
+                                    promptTokens, completionTokens);
+                            idempotencyService.complete(claim, assistantBuffer.toString(), finalEmotion);
+
+                            // 先写出缓冲中的帧再结束
+                            sink.emit(protocol.done(finishReason, promptTokens, completionTokens), 0, true);
+                            batcher.close();
+                            meterRegistry.summary("chat.stream.flushes", "coalesce", String.valueOf(coalesceEnabled))
+                                    .record(batcher.getFlushCount());
+                            permit.release();
+                            emitter.complete();
+                            break;
+                        }
 
-                            // 推送 SSE chunk
-                            emitter.send(data);
-                            System.out.println("SSE send: " + data);
+                        if (chunk.getFinishReason() != null) {
+                            finishReason = chunk.getFinishReason();
+                        }
+                        if (chunk.hasUsage()) {
+                            promptTokens = chunk.getPromptTokens();
+                            completionTokens = chunk.getCompletionTokens();
+                        }
 
-                            JsonNode root = mapper.readTree(data);
-                            JsonNode delta =
-                                    root.path("choices").get(0)
-                                            .path("delta").path("content");
-                            if (!delta.isMissingNode()) {
-                                assistantBuffer.append(delta.asText());
-                            }
+                        // 推送 SSE chunk（legacy 原样透传 / compact 只发文本，可合并发送），发送失败说明客户端已断开
+                        String payload = protocol.deltaPayload(chunk);
+                        if (payload != null) {
+                            sink.emit(protocol.delta(payload), payload.length(), false);
+                        }
+
+                        if (chunk.getContent() != null) {
+                            assistantBuffer.append(chunk.getContent());
                         }
                     }
+                    // 上游没有发 [DONE] 就结束了流（连接被关闭），按中断处理
+                    if (!finished.get()) {
+                        throw new EOFException("上游在回答结束前关闭了连接");
+                    }
                 } catch (Exception e) {
-                    emitter.completeWithError(e);
+                    if (clientGone.get()) {
+                        generation.record(protocol.error(e.getMessage()));
+                        saveTruncated.run();
+                        return;
+                    }
+                    // [DONE] 之后的收尾出错时回答已入库，不再按中断保存
+                    boolean saved = !finished.compareAndSet(false, true);
+                    batcher.close();
+                    permit.release();
+                    // 已生成的部分按中断保存，保证历史一致
+                    String partial = assistantBuffer.toString();
+                    if (!saved) {
+                        if (!partial.isEmpty()) {
+                            saveAssistantMessage(session, model, partial, emotionFuture.getNow("default"), true, -1, -1);
+                        }
+                        idempotencyService.release(claim);
+                    }
+                    failStream(emitter, protocol, generation, e);
                 }
             }
         });
+    }
 
-        return emitter;
+    // 响应式流式聊天：事件协议与 sendMessageStream 相同
+    // 上游走 WebClient（reactor-netty），热历史走响应式 Redis，落库等阻塞操作放到弹性线程池，
+    // 流在等待上游数据时不占用任何线程
+    public Flux<ServerSentEvent<String>> sendMessageFlux(ChatMessageDto dto) {
+        ChatStreamProtocol protocol = ChatStreamProtocol.of(dto.getProtocol());
+        long dbStart = System.nanoTime();
+
+        TurnContextService.TurnContext turn = turnContextService.load(dto.getSessionId());
+        if (turn == null) {
+            return failFlux(protocol, null, new RuntimeException("会话不存在"));
+        }
+
+        GenerationStreamService.Generation generation = generationStreamService.start();
+        IdempotencyService.Claim claim = idempotencyService.claim(
+                dto.getSessionId(), dto.getIdempotencyKey(), generation.getId());
+        if (claim.isDuplicate()) {
+            return idempotencyService.replay(protocol, claim);
+        }
+
+        // 会话空闲（或直接被拒绝）时在返回 Flux 之前完成准入，被拒绝时由 controller 直接返回 409 / 429
+        CompletableFuture<TurnSequencer.Slot> queued = beginTurn(dto.getSessionId(), claim);
+        if (queued.isDone()) {
+            return fluxTurn(protocol, dto, turn, generation, claim, TurnSequencer.await(queued), dbStart);
+        }
+
+        // 排队中：先返回 Flux，不占用请求线程；上一轮结束后在 chatTaskExecutor 上开始本轮，
+        // 排队超时或准入被拒绝时下发 error 事件，客户端取消订阅时放弃排队
+        return Mono.fromFuture(queued)
+                .publishOn(Schedulers.fromExecutor(chatTaskExecutor))
+                .map(slot -> fluxTurn(protocol, dto, turn, generation, claim, slot, dbStart))
+                .onErrorResume(e -> Mono.just(failFlux(protocol, generation, e)))
+                .flatMapMany(Function.identity());
+    }
+
+    private Flux<ServerSentEvent<String>> fluxTurn(ChatStreamProtocol protocol, ChatMessageDto dto,
+                                                   TurnContextService.TurnContext turn,
+                                                   GenerationStreamService.Generation generation,
+                                                   IdempotencyService.Claim claim, TurnSequencer.Slot slot,
+                                                   long dbStart) {
+        Sessions session = turn.session();
+        Models model = turn.model();
+        TurnPermit permit = acquire(turn, claim, slot);
+
+        // 拿到许可后、交给 Flux 之前出错（保存消息、读摘要等）时归还许可和幂等键，否则会话一直被占用
+        Flux<ServerSentEvent<String>> events;
+        try {
+            Messages userMsg = new Messages();
+            userMsg.setSession(session);
+            userMsg.setContent(dto.getMessage());
+            userMsg.setCreatedAt(LocalDateTime.now());
+            userMsg.setRole(roleType.user);
+            userMsg.setTokens(tokenCounter.count(dto.getMessage(), model.getModelVersion()));
+            messageWriteBehindService.save(userMsg);
+
+            List<Map<String, String>> systemMessages = new ArrayList<>(turn.prompts().prefix());
+            int afterMessageId = addSummary(systemMessages, session.getSessionId());
+            // pending 快照在订阅时读缓存之前取
+            List<Messages> pending = messageWriteBehindService.pendingOf(session.getSessionId());
+
+            events = historyCacheService
+                    .getRecentReactive(session.getSessionId(), afterMessageId)
+                    .map(history -> {
+                        turnContextService.recordDbTime("flux", dbStart);
+                        return contextWindowService.assemble(systemMessages,
+                                withPending(history, pending, afterMessageId), model);
+                    })
+                    .flatMapMany(chatMessages -> {
+                        try {
+                            return streamFlux(protocol, turn, generation, claim, permit, chatMessages);
+                        } catch (RuntimeException e) {
+                            idempotencyService.release(claim);
+                            return failFlux(protocol, generation, e);
+                        }
+                    }, e -> {
+                        // 读取历史或拼上下文失败，上游还没有调用
+                        idempotencyService.release(claim);
+                        return failFlux(protocol, generation, e);
+                    }, Flux::empty)
+                    .doFinally(signal -> permit.release());
+        } catch (RuntimeException e) {
+            permit.release();
+            idempotencyService.release(claim);
+            return failFlux(protocol, generation, e);
+        }
+        boolean detach = generationStreamService.detachOnDisconnect();
+        long graceMs = generationStreamService.disconnectGraceMs();
+        if (!detach && graceMs <= 0) {
+            return events;
+        }
+
+        // 断开后继续生成：生成流与客户端订阅分离，客户端取消不会取消上游，帧继续写入续传 Stream
+        Sinks.Many<ServerSentEvent<String>> sink = Sinks.many().unicast().onBackpressureBuffer();
+        Disposable generating = events.subscribe(sink::tryEmitNext, sink::tryEmitError, sink::tryEmitComplete);
+        if (detach) {
+            return sink.asFlux();
+        }
+        // 宽限期内没有续传接入时取消生成流，已生成的部分按中断保存
+        return sink.asFlux().doOnCancel(() -> {
+            meterRegistry.counter("chat.stream.grace").increment();
+            cancelIfAbandoned(generation, generating::isDisposed, generating::dispose, graceMs);
+        });
+    }
+
+    private Flux<ServerSentEvent<String>> streamFlux(ChatStreamProtocol protocol,
+                                                     TurnContextService.TurnContext turn,
+                                                     GenerationStreamService.Generation generation,
+                                                     IdempotencyService.Claim claim,
+                                                     TurnPermit permit,
+                                                     List<Map<String, String>> chatMessages) {
+        Sessions session = turn.session();
+        Models model = turn.model();
+        // 帧按下发顺序编号并写入续传 Stream
+        Function<ChatStreamProtocol.Frame, ServerSentEvent<String>> sse =
+                frame -> frame.toServerSentEvent(generation.record(frame));
+
+        CompletableFuture<String> emotionFuture = emotionService.detectAsync(
+                chatMessages, model, turn.prompts().live2dId(), turn.prompts().live2dPrompt());
+        AtomicBoolean emotionSent = new AtomicBoolean(false);
+
+        Map<String, Object> req = new HashMap<>();
+        req.put("model", model.getModelVersion());
+        req.put("messages", chatMessages);
+        req.put("max_tokens", model.getMaxTokens());
+        req.put("stream", true);
+        if (chatProperties.getTokens().isStreamUsage()) {
+            req.put("stream_options", Map.of("include_usage", true));
+        }
+        String body;
+        try {
+            body = mapper.writeValueAsString(req);
+        } catch (Exception e) {
+            idempotencyService.release(claim);
+            return failFlux(protocol, generation, e);
+        }
+
+        StringBuilder assistantBuffer = new StringBuilder();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        // 流内按顺序处理，不需要同步
+        String[] finishReason = new String[1];
+        int[] usage = {-1, -1};
+        SseChunkParser parser = new SseChunkParser();
+        // 被同一会话的新一轮取消（cancel-previous）：停止读取上游，已生成的部分按中断保存
+        AtomicBoolean turnCancelled = new AtomicBoolean(false);
+        Sinks.One<Boolean> cancelSignal = Sinks.one();
+        permit.slot().onCancel(() -> {
+            turnCancelled.set(true);
+            cancelSignal.tryEmitValue(true);
+        });
+
+        // 按 interactive 通道排队拿到供应商并发名额后再发出，流结束时归还；收到第一行之前失败会重试
+        Flux<ServerSentEvent<String>> deltas = modelCallService
+                .reactive(model, UpstreamScheduler.Lane.INTERACTIVE, () -> {
+                    long sentAt = System.nanoTime();
+                    return upstreamClientRegistry.reactive(model).post()
+                            .uri(model.getApiURL())
+                            .header("Authorization", "Bearer " + model.getApiKey())
+                            .contentType(org.springframework.http.MediaType.APPLICATION_JSON)
+                            .bodyValue(body)
+                            .exchangeToFlux(response -> {
+                                sampleLatency(permit.concurrency(), response.statusCode().value(),
+                                        System.nanoTime() - sentAt);
+                                return response.statusCode().is2xxSuccessful()
+                                        ? LINE_DECODER.decode(response.bodyToFlux(DataBuffer.class),
+                                        ResolvableType.forClass(String.class), null, null)
+                                        : response.createException().flatMapMany(Flux::error);
+                            })
+                            // 连接失败 / 超时说明供应商已过载，收缩并发上限
+                            .doOnError(WebClientRequestException.class, e -> permit.concurrency().onDropped());
+                })
+                .<SseChunkParser.Chunk>handle((line, sink) -> {
+                    SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+                    try {
+                        if (parser.parseLine(line.getBytes(StandardCharsets.UTF_8), chunk)) {
+                            sink.next(chunk);
+                        }
+                    } catch (IOException e) {
+                        sink.error(e);
+                    }
+                })
+                .takeWhile(chunk -> !chunk.isDone())
+                .takeUntilOther(cancelSignal.asMono())
+                .concatMapIterable(chunk -> {
+                    if (chunk.getFinishReason() != null) {
+                        finishReason[0] = chunk.getFinishReason();
+                    }
+                    if (chunk.hasUsage()) {
+                        usage[0] = chunk.getPromptTokens();
+                        usage[1] = chunk.getCompletionTokens();
+                    }
+                    if (chunk.getContent() != null) {
+                        assistantBuffer.append(chunk.getContent());
+                    }
+                    List<ServerSentEvent<String>> events = new ArrayList<>(2);
+                    // 情感判断已完成时跟随下一帧下发，保证事件顺序
+                    if (emotionFuture.isDone() && emotionSent.compareAndSet(false, true)) {
+                        events.add(sse.apply(protocol.emotion(emotionFuture.getNow(EmotionService.DEFAULT))));
+                    }
+                    String payload = protocol.deltaPayload(chunk);
+                    if (payload != null) {
+                        events.add(sse.apply(protocol.delta(payload)));
+                    }
+                    return events;
+                });
+
+        // 上游结束（[DONE] 或连接正常关闭）：等待情感判断，入库，最后下发 done
+        Flux<ServerSentEvent<String>> tail = Mono.fromFuture(emotionFuture, true)
+                .flatMapMany(emotion -> Mono
+                        .fromRunnable(() -> {
+                            if (finished.compareAndSet(false, true)) {
+                                saveAssistantMessage(session, model, assistantBuffer.toString(), emotion, false,
+                                        usage[0], usage[1]);
+                                idempotencyService.complete(claim, assistantBuffer.toString(), emotion);
+                            }
+                        })
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .thenMany(Flux.concat(
+                                emotionSent.compareAndSet(false, true)
+                                        ? Flux.just(sse.apply(protocol.emotion(emotion)))
+                                        : Flux.empty(),
+                                Flux.defer(() -> Flux.just(
+                                        sse.apply(protocol.done(finishReason[0], usage[0], usage[1])))))));
+
+        return deltas
+                .concatWith(Flux.defer(() -> turnCancelled.get()
+                        ? Flux.error(new RuntimeException("已被同一会话的新消息取消"))
+                        : tail))
+                // 客户端断开：订阅被取消，WebClient 随之关闭上游连接，这里保存已生成的部分回答
+                .doOnCancel(() -> {
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    String partial = assistantBuffer.toString();
+                    Schedulers.boundedElastic().schedule(() -> {
+                        if (!partial.isEmpty()) {
+                            saveAssistantMessage(session, model, partial, emotionFuture.getNow(EmotionService.DEFAULT),
+                                    true, -1, -1);
+                        }
+                        idempotencyService.release(claim);
+                        meterRegistry.counter("chat.stream.cancelled").increment();
+                    });
+                })
+                .onErrorResume(e -> {
+                    if (turnCancelled.get() && finished.compareAndSet(false, true)) {
+                        // 先保存部分回答再结束，保证新一轮读到完整的历史
+                        String partial = assistantBuffer.toString();
+                        String emotion = emotionFuture.getNow(EmotionService.DEFAULT);
+                        return Mono
+                                .fromRunnable(() -> {
+                                    if (!partial.isEmpty()) {
+                                        saveAssistantMessage(session, model, partial, emotion, true, -1, -1);
+                                    }
+                                    idempotencyService.release(claim);
+                                })
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .thenMany(failFlux(protocol, generation, e));
+                    }
+                    finished.set(true);
+                    idempotencyService.release(claim);
+                    return failFlux(protocol, generation, e);
+                });
+    }
+
+    // 响应式流失败：compact 协议下发 error 事件后正常结束，legacy 直接以错误结束
+    private Flux<ServerSentEvent<String>> failFlux(ChatStreamProtocol protocol,
+                                                   GenerationStreamService.Generation generation, Throwable e) {
+        ChatStreamProtocol.Frame frame = protocol.error(e.getMessage());
+        String id = generation == null ? null : generation.record(frame);
+        if (protocol == ChatStreamProtocol.LEGACY) {
+            return Flux.error(e);
+        }
+        return Flux.just(frame.toServerSentEvent(id));
     }
 
     // 非流式聊天
     public Map<String, Object> sendMessageOnce(ChatMessageDto dto) {
-        Sessions session = sessionRepository.getSessionsBySessionId(dto.getSessionId());
-        if (session == null) {
+        long dbStart = System.nanoTime();
+        TurnContextService.TurnContext turn = turnContextService.load(dto.getSessionId());
+        if (turn == null) {
             throw new RuntimeException("会话不存在");
         }
 
-        Models model = session.getModel();
-        String systemPrompt = session.getRole().getPrompt();
+        // 重复请求等待原请求完成并返回同一个回答
+        IdempotencyService.Claim claim = idempotencyService.claim(dto.getSessionId(), dto.getIdempotencyKey(), null);
+        if (claim.isDuplicate()) {
+            return Map.of("content", idempotencyService.awaitContent(claim));
+        }
+
+        // 非流式接口本身要等待回答，排队也在请求线程上等待
+        TurnSequencer.Slot slot = TurnSequencer.await(beginTurn(dto.getSessionId(), claim));
+        TurnPermit permit = acquire(turn, claim, slot);
+        try {
+            Map<String, Object> result = sendMessageOnce(dto, turn, permit, dbStart);
+            idempotencyService.complete(claim, (String) result.get("content"), null);
+            return result;
+        } catch (RuntimeException e) {
+            idempotencyService.release(claim);
+            throw e;
+        } finally {
+            permit.release();
+        }
+    }
+
+    private Map<String, Object> sendMessageOnce(ChatMessageDto dto, TurnContextService.TurnContext turn,
+                                                TurnPermit permit, long dbStart) {
+
+        Sessions session = turn.session();
+        Models model = turn.model();
 
         // 保存 user 消息
         Messages userMsg = new Messages();
@@ -314,29 +991,15 @@ public class ChatService {
         userMsg.setRole(roleType.user);
         userMsg.setContent(dto.getMessage());
         userMsg.setCreatedAt(LocalDateTime.now());
-        messageRepository.save(userMsg);
+        userMsg.setTokens(tokenCounter.count(dto.getMessage(), model.getModelVersion()));
+        messageWriteBehindService.save(userMsg);
 
-        // 构建上下文
-        List<Map<String, String>> chatMessages = new ArrayList<>();
+        // 构建上下文：system（只含角色提示词）
+        List<Map<String, String>> systemMessages = new ArrayList<>(turn.prompts().rolePrefix());
 
-        // system
-        if (systemPrompt != null && !systemPrompt.isEmpty()) {
-            chatMessages.add(Map.of(
-                    "role", "system",
-                    "content", systemPrompt
-            ));
-        }
-
-        // history (user & assistant)
-        List<Messages> history =
-                messageRepository.findBySessionIdOrderByCreatedAtAsc(session.getSessionId());
-
-        for (Messages m : history) {
-            chatMessages.add(Map.of(
-                    "role", m.getRole().name(),
-                    "content", m.getContent()
-            ));
-        }
+        // history (user & assistant)，摘要 + 按 token 预算裁剪
+        List<Map<String, String>> chatMessages = buildContext(systemMessages, session.getSessionId(), model);
+        turnContextService.recordDbTime("once", dbStart);
 
         Map<String, Object> req = new HashMap<>();
         req.put("model", model.getModelVersion());
@@ -345,21 +1008,20 @@ public class ChatService {
         req.put("stream", false);
 
         try {
-            Request request = new Request.Builder()
-                    .url(model.getApiURL())
-                    .addHeader("Authorization", "Bearer " + model.getApiKey())
-                    .post(RequestBody.create(
-                            mapper.writeValueAsString(req),
-                            MediaType.parse("application/json")))
-                    .build();
-
-            try (Response response =
-                         okHttpClient.newCall(request).execute()) {
-
-                if (!response.isSuccessful()) {
-                    throw new RuntimeException(
-                            "模型调用失败：" + response.body().string()
-                    );
+            String json = mapper.writeValueAsString(req);
+
+            // 慢于 p95 时可对冲（chat.hedge），对冲请求可能发往同组的其它成员
+            // 被同一会话的新一轮取消（cancel-previous）时中断请求
+            ModelCallService.HedgedCall call = modelCallService.hedged(model, target -> new Request.Builder()
+                    .url(target.getApiURL())
+                    .addHeader("Authorization", "Bearer " + target.getApiKey())
+                    .post(RequestBody.create(json, MediaType.parse("application/json")))
+                    .build(), UpstreamScheduler.Lane.INTERACTIVE);
+            permit.slot().onCancel(call::cancel);
+            try (Response response = call.execute()) {
+                // 并发名额只属于本轮路由到的模型
+                if (call.getModel() == model) {
+                    sampleLatency(permit.concurrency(), response);
                 }
 
                 String body = response.body().string();
@@ -373,13 +1035,11 @@ public class ChatService {
                         .path("content")
                         .asText();
 
-                // assistant 回答写入数据库
-                Messages assistantMsg = new Messages();
-                assistantMsg.setSession(session);
-                assistantMsg.setRole(roleType.assistant);
-                assistantMsg.setContent(content);
-                assistantMsg.setCreatedAt(LocalDateTime.now());
-                messageRepository.save(assistantMsg);
+                // assistant 回答写入数据库（记录实际返回结果的模型），同时记录供应商返回的 usage
+                JsonNode usage = root.path("usage");
+                saveAssistantMessage(session, call.getModel(), content, null, false,
+                        usage.path("prompt_tokens").asInt(-1),
+                        usage.path("completion_tokens").asInt(-1));
 
                 // 返回数据
                 return Map.of(
@@ -388,6 +1048,10 @@ public class ChatService {
             }
 
         } catch (Exception e) {
+            // 超时或供应商返回非 2xx（ModelCallService 已转为 HttpStatusException）时收缩并发上限
+            if (e instanceof InterruptedIOException || e instanceof ModelCallService.HttpStatusException) {
+                permit.concurrency().onDropped();
+            }
             throw new RuntimeException("非流式调用失败", e);
         }
     }
@@ -421,9 +1085,16 @@ public class ChatService {
                 .toList();
     }
 
-    // 获取全部消息
+    // 获取全部消息（含尚未落库的消息）
     public List<MessageListElementVO> getMessageList(int sessionId) {
-        List<Messages> messageList = messageRepository.findBySessionIdOrderByCreatedAtAsc(sessionId);
+        List<Messages> pending = messageWriteBehindService.pendingOf(sessionId);
+        List<Messages> messageList = new ArrayList<>(messageRepository.findBySessionIdOrderByCreatedAtAsc(sessionId));
+        int lastId = messageList.isEmpty() ? 0 : messageList.get(messageList.size() - 1).getMessageId();
+        for (Messages m : pending) {
+            if (m.getMessageId() == 0 || m.getMessageId() > lastId) {
+                messageList.add(m);
+            }
+        }
         return messageList.stream()
                 .map(msg -> new MessageListElementVO(
                         msg.getMessageId(),
@@ -474,7 +1145,9 @@ public class ChatService {
 
     // 删除会话
     public void deleteSession(int sessionId) {
+        messageWriteBehindService.flush();
         sessionRepository.deleteById(sessionId);
+        historyCacheService.evict(sessionId);
     }
 
     // 修改会话
@@ -489,11 +1162,20 @@ public class ChatService {
     // 清空消息
     @Transactional
     public void clearAllMessages(int sessionId) {
+        // 先把队列中的消息落库，避免删除后又被写回
+        messageWriteBehindService.flush();
         messageRepository.deleteBySession(sessionRepository.getSessionsBySessionId(sessionId));
+        summaryService.clear(sessionId);
+        historyCacheService.evict(sessionId);
     }
 
     // 删除单调消息
     public void deleteOneMessage(int messageId) {
+        messageWriteBehindService.flush();
+        Messages message = messageRepository.findById(messageId).orElse(null);
         messageRepository.deleteById(messageId);
+        if (message != null) {
+            historyCacheService.evict(message.getSession().getSessionId());
+        }
     }
 }
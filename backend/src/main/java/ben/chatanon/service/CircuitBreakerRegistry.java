@@ -0,0 +1,202 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 按模型熔断：最近 windowSize 次调用中失败（连接失败、超时、429 / 5xx）比例超过阈值时打开，
+// 打开期间的请求在本地立即失败，不再等待 socket 超时；openMs 后进入半开，放行少量探测请求，
+// 探测全部成功则关闭，任一失败重新打开
+@Service
+public class CircuitBreakerRegistry {
+    public static final String CLOSED = "closed";
+    public static final String OPEN = "open";
+    public static final String HALF_OPEN = "half_open";
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Integer, Breaker> breakers = new ConcurrentHashMap<>();
+
+    // 熔断打开时抛出
+    public static class CircuitOpenException extends RuntimeException {
+        private final long retryAfterSeconds;
+
+        public CircuitOpenException(String model, long retryAfterSeconds) {
+            super("模型暂时不可用，请稍后再试（" + model + "）");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        // 距离进入半开的秒数（至少 1）
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    // 单个模型的熔断器；每次 acquire 成功后必须上报一次结果（onSuccess / onFailure / onIgnored）
+    public final class Breaker {
+        private final String model;
+        private String state = CLOSED;
+        // 最近调用结果的环形窗口，true 为失败
+        private final boolean[] window;
+        private int next;
+        private int count;
+        private int failures;
+        private long openedAt;
+        private int probesInFlight;
+        private int probeSuccesses;
+
+        private Breaker(String model) {
+            this.model = model;
+            this.window = new boolean[Math.max(1, chatProperties.getBreaker().getWindowSize())];
+            Gauge.builder("chat.breaker.state", this, Breaker::stateValue)
+                    .description("熔断状态：0 关闭，1 半开，2 打开")
+                    .tag("model", model)
+                    .register(meterRegistry);
+        }
+
+        // 是否放行（不占用探测名额），用于在保存消息前快速失败
+        public synchronized void check() {
+            if (OPEN.equals(state) && !openElapsed()) {
+                reject();
+            }
+        }
+
+        // 打开且尚未到半开时间
+        public synchronized boolean isOpen() {
+            return OPEN.equals(state) && !openElapsed();
+        }
+
+        // 放行一次调用，打开或半开探测名额已满时抛出 CircuitOpenException
+        public synchronized void acquire() {
+            ChatProperties.Breaker config = chatProperties.getBreaker();
+            if (OPEN.equals(state)) {
+                if (!openElapsed()) {
+                    reject();
+                }
+                transition(HALF_OPEN);
+                probesInFlight = 0;
+                probeSuccesses = 0;
+            }
+            if (HALF_OPEN.equals(state)) {
+                if (probesInFlight >= config.getHalfOpenProbes()) {
+                    reject();
+                }
+                probesInFlight++;
+            }
+        }
+
+        public synchronized void onSuccess() {
+            if (HALF_OPEN.equals(state)) {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (++probeSuccesses >= chatProperties.getBreaker().getHalfOpenProbes()) {
+                    reset();
+                    transition(CLOSED);
+                }
+                return;
+            }
+            record(false);
+        }
+
+        public synchronized void onFailure() {
+            if (HALF_OPEN.equals(state)) {
+                open();
+                return;
+            }
+            if (OPEN.equals(state)) {
+                return;
+            }
+            record(true);
+            ChatProperties.Breaker config = chatProperties.getBreaker();
+            if (count >= config.getMinCalls() && failures * 100 >= config.getFailureRatePercent() * count) {
+                open();
+            }
+        }
+
+        // 调用被取消或在本地被拒绝（排队丢弃等），不计入结果
+        public synchronized void onIgnored() {
+            if (HALF_OPEN.equals(state)) {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+            }
+        }
+
+        private void record(boolean failure) {
+            if (count == window.length) {
+                if (window[next]) {
+                    failures--;
+                }
+            } else {
+                count++;
+            }
+            window[next] = failure;
+            if (failure) {
+                failures++;
+            }
+            next = (next + 1) % window.length;
+        }
+
+        private void reset() {
+            next = 0;
+            count = 0;
+            failures = 0;
+        }
+
+        private void open() {
+            openedAt = System.currentTimeMillis();
+            reset();
+            transition(OPEN);
+        }
+
+        private boolean openElapsed() {
+            return System.currentTimeMillis() - openedAt >= chatProperties.getBreaker().getOpenMs();
+        }
+
+        private void reject() {
+            meterRegistry.counter("chat.breaker.rejected", "model", model).increment();
+            long remaining = openedAt + chatProperties.getBreaker().getOpenMs() - System.currentTimeMillis();
+            throw new CircuitOpenException(model, Math.max(1, (remaining + 999) / 1000));
+        }
+
+        private void transition(String to) {
+            String from = state;
+            state = to;
+            System.out.println("模型熔断状态变化 " + model + ": " + from + " -> " + to);
+            meterRegistry.counter("chat.breaker.transition", "model", model, "from", from, "to", to).increment();
+        }
+
+        private synchronized int stateValue() {
+            return OPEN.equals(state) ? 2 : HALF_OPEN.equals(state) ? 1 : 0;
+        }
+    }
+
+    // 关闭熔断时返回 null
+    public Breaker of(Models model) {
+        if (!chatProperties.getBreaker().isEnabled()) {
+            return null;
+        }
+        return breakers.computeIfAbsent(model.getModelId(), id -> new Breaker(model.getModelName()));
+    }
+
+    // 熔断打开时立即抛出 CircuitOpenException
+    public void check(Models model) {
+        Breaker breaker = of(model);
+        if (breaker != null) {
+            breaker.check();
+        }
+    }
+
+    // 熔断打开（不计入拒绝次数），用于模型组路由时跳过该成员
+    public boolean isOpen(Models model) {
+        Breaker breaker = of(model);
+        return breaker != null && breaker.isOpen();
+    }
+}
@@ -0,0 +1,70 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Messages;
+import ben.chatanon.entity.entity_chat.Models;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// 上下文窗口管理：在模型的 token 预算内组装请求上下文
+@Service
+public class ContextWindowService {
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private TokenCounter tokenCounter;
+
+    // 计算模型可用于输入上下文的 token 预算（上下文窗口 - 回答预留）
+    public int promptBudget(Models model) {
+        ChatProperties.Context config = chatProperties.getContext();
+        int window = config.getWindowTokens()
+                .getOrDefault(model.getModelVersion(), config.getDefaultWindowTokens());
+        int budget = window - model.getMaxTokens();
+        // 配置异常时（回答预留超过窗口），至少保留一半窗口给上下文
+        return budget > 0 ? budget : window / 2;
+    }
+
+    // 组装上下文：system 提示词全部保留，历史消息从最新往前填充直到预算用完
+    // history 需按时间正序传入
+    public List<Map<String, String>> assemble(List<Map<String, String>> systemMessages,
+                                              List<Messages> history,
+                                              Models model) {
+        int remaining = promptBudget(model);
+        for (Map<String, String> m : systemMessages) {
+            // system 提示词基本不变，计数走缓存
+            remaining -= tokenCounter.countStatic(m.get("content"), model.getModelVersion()) + TokenCounter.MESSAGE_OVERHEAD;
+        }
+
+        List<Map<String, String>> recent = new ArrayList<>();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            Messages m = history.get(i);
+            int cost = tokensOf(m, model) + TokenCounter.MESSAGE_OVERHEAD;
+            // 最新一条（本轮用户输入）无论如何都要带上
+            if (cost > remaining && !recent.isEmpty()) {
+                break;
+            }
+            remaining -= cost;
+            recent.add(Map.of(
+                    "role", m.getRole().name(),
+                    "content", m.getContent()
+            ));
+        }
+        Collections.reverse(recent);
+
+        List<Map<String, String>> chatMessages = new ArrayList<>(systemMessages.size() + recent.size());
+        chatMessages.addAll(systemMessages);
+        chatMessages.addAll(recent);
+        return chatMessages;
+    }
+
+    // 优先使用入库时记录的 tokens，旧数据（为 0）再按模型分词器现场计算
+    private int tokensOf(Messages m, Models model) {
+        return m.getTokens() > 0 ? m.getTokens() : tokenCounter.count(m.getContent(), model.getModelVersion());
+    }
+}
@@ -0,0 +1,272 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// 情感判断：只取最近若干条消息作为输入，可按模型选择本地词表分类或远程模型判断
+// 远程结果按（Live2D 提示词 + 输入窗口）内容哈希缓存在 Redis，重新生成、重复提问等相同上下文直接命中缓存
+@Service
+public class EmotionService {
+    private static final String KEY_PREFIX = "chat:emotion:";
+    public static final String DEFAULT = "default";
+    public static final String MODE_REMOTE = "remote";
+    public static final String MODE_LOCAL = "local";
+    public static final String MODE_LOCAL_THEN_REMOTE = "local-then-remote-if-uncertain";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ModelCallService modelCallService;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private LocalEmotionClassifier localEmotionClassifier;
+
+    @Autowired
+    private ThreadPoolTaskExecutor chatTaskExecutor;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Timer remoteTimer;
+    private DistributionSummary savedSummary;
+
+    @PostConstruct
+    public void init() {
+        hitCounter = Counter.builder("chat.emotion.cache").tag("result", "hit").register(meterRegistry);
+        missCounter = Counter.builder("chat.emotion.cache").tag("result", "miss").register(meterRegistry);
+        remoteTimer = Timer.builder("chat.emotion.remote")
+                .description("情感判断远程调用耗时")
+                .register(meterRegistry);
+        savedSummary = DistributionSummary.builder("chat.emotion.cache.saved")
+                .description("缓存命中节省的远程调用耗时（按远程调用平均耗时估算）")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    // 异步判断情感，按模型配置的模式选择本地 / 远程分类：
+    // remote：远程判断，超时或失败时使用本地结果；local：只用本地词表；
+    // local-then-remote-if-uncertain：本地结果确定时直接返回，否则再走远程
+    // context 为本轮发给模型的完整上下文，live2dId / emotionPrompt 来自角色的 Live2D 配置，没有 Live2D 时直接返回 default
+    public CompletableFuture<String> detectAsync(List<Map<String, String>> context, Models model,
+                                                 Integer live2dId, String emotionPrompt) {
+        if (emotionPrompt == null) {
+            return CompletableFuture.completedFuture(DEFAULT);
+        }
+        List<Map<String, String>> window = window(context);
+
+        LocalEmotionClassifier.Result local;
+        try {
+            local = localEmotionClassifier.classify(live2dId, window);
+        } catch (Exception e) {
+            System.out.println("本地情感分类失败: " + e.getMessage());
+            local = new LocalEmotionClassifier.Result(null, 0, false);
+        }
+        String localLabel = local.label() != null ? local.label() : DEFAULT;
+
+        ChatProperties.Emotion config = chatProperties.getEmotion();
+        String mode = config.getModes().getOrDefault(model.getModelVersion(), config.getMode());
+        if (MODE_LOCAL.equals(mode) || (MODE_LOCAL_THEN_REMOTE.equals(mode) && local.confident())) {
+            meterRegistry.counter("chat.emotion.source", "source", "local").increment();
+            return CompletableFuture.completedFuture(localLabel);
+        }
+
+        // 后台线程池已满时直接用本地结果：线程池队列满会退回调用线程执行，远程判断不能阻塞主请求
+        if (chatTaskExecutor.getThreadPoolExecutor().getQueue().remainingCapacity() == 0) {
+            meterRegistry.counter("chat.emotion.source", "source", "saturated").increment();
+            return CompletableFuture.completedFuture(localLabel);
+        }
+
+        LocalEmotionClassifier.Result localResult = local;
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return detectRemote(window, model, live2dId, emotionPrompt);
+                    } catch (Exception e) {
+                        return DEFAULT;
+                    }
+                }, chatTaskExecutor)
+                .whenComplete((remote, e) -> {
+                    boolean ok = e == null && remote != null && !DEFAULT.equals(remote);
+                    if (ok && localResult.label() != null) {
+                        // 本地与远程的一致率，用来判断词表是否可以替代远程调用
+                        meterRegistry.counter("chat.emotion.agreement",
+                                "result", localResult.label().equals(remote) ? "agree" : "disagree").increment();
+                    }
+                    if (result.complete(ok ? remote : localLabel)) {
+                        meterRegistry.counter("chat.emotion.source", "source", ok ? "remote" : "fallback").increment();
+                    }
+                });
+        // 供应商慢：超过截止时间改用本地结果（远程结果仍会写入缓存）
+        chatTaskScheduler.schedule(() -> {
+            if (result.complete(localLabel)) {
+                meterRegistry.counter("chat.emotion.source", "source", "fallback").increment();
+            }
+        }, Instant.now().plusMillis(config.getTimeoutMs()));
+        return result;
+    }
+
+    // 去除 system，只保留最近 windowMessages 条 user / assistant
+    private List<Map<String, String>> window(List<Map<String, String>> context) {
+        List<Map<String, String>> cleanText = context.stream()
+                .filter(m -> !"system".equals(m.get("role")))
+                .toList();
+        int window = chatProperties.getEmotion().getWindowMessages();
+        if (window > 0 && cleanText.size() > window) {
+            cleanText = cleanText.subList(cleanText.size() - window, cleanText.size());
+        }
+        return cleanText;
+    }
+
+    // 远程判断（先查缓存）
+    private String detectRemote(List<Map<String, String>> window, Models model, Integer live2dId, String emotionPrompt) throws Exception {
+        String input = mapper.writeValueAsString(window);
+
+        String key = cacheKey(live2dId, emotionPrompt, input);
+        String cached = readCache(key);
+        if (cached != null) {
+            hitCounter.increment();
+            savedSummary.record(remoteTimer.mean(TimeUnit.MILLISECONDS));
+            return cached;
+        }
+        missCounter.increment();
+
+        long start = System.nanoTime();
+        String emotion = requestEmotion(model, emotionPrompt, input);
+        remoteTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        // default 多半是调用失败或模型没给结果，不缓存
+        if (!DEFAULT.equals(emotion)) {
+            writeCache(key, emotion);
+        }
+        return emotion;
+    }
+
+    private String requestEmotion(Models model, String emotionPrompt, String input) throws Exception {
+        // 构造情感判断请求
+        Map<String, Object> req = new HashMap<>();
+        req.put("model", model.getModelVersion());
+        req.put("messages", List.of(
+                // 新的情感判断 system prompt（来自 Live2D）
+                Map.of(
+                        "role", "system",
+                        "content", emotionPrompt
+                ),
+                // 把上下文窗口整体作为 user 内容传入
+                Map.of(
+                        "role", "user",
+                        "content", input
+                )
+        ));
+        req.put("max_tokens", 100);
+        req.put("stream", false);
+        req.put("temperature", 0);
+
+        String json = mapper.writeValueAsString(req);
+
+        // 同步请求情感判断
+        // 按 emotion 通道排队拿到供应商并发名额；模型熔断打开时立即失败，不再等待超时；
+        // 慢于 p95 时可对冲（chat.hedge），对冲请求可能发往同组的其它成员
+        try (Response response = modelCallService.hedged(model, target -> new Request.Builder()
+                .url(target.getApiURL())
+                .addHeader("Authorization", "Bearer " + target.getApiKey())
+                .post(RequestBody.create(json, MediaType.parse("application/json")))
+                .build(), UpstreamScheduler.Lane.EMOTION).execute()) {
+
+            if (!response.isSuccessful() || response.body() == null) {
+                return DEFAULT;
+            }
+
+            String body = response.body().string();
+
+            // 解析模型返回
+            String content = mapper.readTree(body)
+                    .path("choices").get(0)
+                    .path("message")
+                    .path("content")
+                    .asText()
+                    .trim();
+
+            // 兜底处理（极其重要）
+            if (content.isEmpty()) {
+                return DEFAULT;
+            }
+
+            // 只取第一行，防止模型多说废话
+            int newlineIndex = content.indexOf('\n');
+            if (newlineIndex != -1) {
+                content = content.substring(0, newlineIndex).trim();
+            }
+
+            return content;
+        }
+    }
+
+    // key = Live2D id + sha256(情感提示词 + 输入窗口)，提示词改动后旧结果自然失效
+    private String cacheKey(Integer live2dId, String emotionPrompt, String input) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(emotionPrompt.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(input.getBytes(StandardCharsets.UTF_8));
+        return KEY_PREFIX + live2dId + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private String readCache(String key) {
+        if (chatProperties.getEmotion().getCacheTtlMinutes() <= 0) {
+            return null;
+        }
+        try {
+            return redisTemplate.opsForValue().get(key);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void writeCache(String key, String emotion) {
+        long ttl = chatProperties.getEmotion().getCacheTtlMinutes();
+        if (ttl <= 0) {
+            return;
+        }
+        try {
+            redisTemplate.opsForValue().set(key, emotion, Duration.ofMinutes(ttl));
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.util.ChatStreamProtocol;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 流式回答断线续传：每次生成下发的帧按顺序写入短期 Redis Stream（chat:gen:{generationId}），
+// SSE id 为 {generationId}:{seq}。客户端断线后带 Last-Event-ID 请求续传，
+// 任一节点都可以先回放缺失的帧，再继续跟随直到 done / error；结束后 Stream 很快过期
+@Service
+public class GenerationStreamService {
+    private static final String KEY_PREFIX = "chat:gen:";
+    // 有客户端正在续传该生成的标记，宽限期结束时据此决定是否取消生成
+    private static final String ATTACHED_SUFFIX = ":attached";
+    // Stream 记录字段：e 事件名，d 数据，t 最后一帧标记
+    private static final String FIELD_EVENT = "e";
+    private static final String FIELD_DATA = "d";
+    private static final String FIELD_TERMINAL = "t";
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 一次生成；record 需按下发顺序调用
+    public final class Generation {
+        private final String id;
+        private final String key;
+        private final AtomicLong seq = new AtomicLong();
+
+        private Generation(String id) {
+            this.id = id;
+            this.key = KEY_PREFIX + id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        // 记录一帧并返回它的 SSE id；写 Redis 为异步，不阻塞下发
+        public synchronized String record(ChatStreamProtocol.Frame frame) {
+            long n = seq.incrementAndGet();
+            ChatProperties.Resume config = chatProperties.getStream().getResume();
+            if (!config.isEnabled()) {
+                return null;
+            }
+
+            Map<String, String> fields = new HashMap<>(4);
+            fields.put(FIELD_DATA, frame.data());
+            if (frame.event() != null) {
+                fields.put(FIELD_EVENT, frame.event());
+            }
+            if (frame.terminal()) {
+                fields.put(FIELD_TERMINAL, "1");
+            }
+            // 显式使用 seq-0 作为记录 id，续传时直接按序号定位
+            MapRecord<String, String, String> record = StreamRecords.newRecord()
+                    .in(key)
+                    .withId(RecordId.of(n, 0))
+                    .ofMap(fields);
+
+            Mono<?> op = reactiveRedisTemplate.opsForStream().add(record);
+            if (n == 1) {
+                // 生成中的过期时间兜底（节点宕机时不会永久残留）
+                op = op.then(reactiveRedisTemplate.expire(key, Duration.ofMillis(config.getActiveTtlMs())));
+            }
+            if (frame.terminal()) {
+                op = op.then(reactiveRedisTemplate.expire(key, Duration.ofMillis(config.getRetainAfterDoneMs())));
+            }
+            // 同一连接上命令按发出顺序执行，写入顺序与 seq 一致
+            op.subscribe(null, e -> System.out.println("续传帧写入失败 " + key + ": " + e.getMessage()));
+            return id + ":" + n;
+        }
+    }
+
+    public Generation start() {
+        return new Generation(UUID.randomUUID().toString());
+    }
+
+    // 客户端断开后是否继续生成（只写 Redis，等待续传），关闭时沿用断开即取消上游的行为
+    public boolean detachOnDisconnect() {
+        ChatProperties.Resume config = chatProperties.getStream().getResume();
+        return config.isEnabled() && config.isContinueAfterDisconnect();
+    }
+
+    // 客户端断开后等待续传接入的宽限期（毫秒），0 表示断开即取消
+    public long disconnectGraceMs() {
+        ChatProperties.Resume config = chatProperties.getStream().getResume();
+        return config.isEnabled() ? Math.max(0, config.getDisconnectGraceMs()) : 0;
+    }
+
+    // 是否有客户端正在续传（任一节点）；读取失败时按没有处理
+    public boolean isAttached(String generationId) {
+        try {
+            return Boolean.TRUE.equals(redisTemplate.hasKey(KEY_PREFIX + generationId + ATTACHED_SUFFIX));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // 解析 Last-Event-ID（{generationId}:{seq}），格式不对返回 null
+    public static String[] parseEventId(String lastEventId) {
+        if (lastEventId == null) {
+            return null;
+        }
+        int colon = lastEventId.lastIndexOf(':');
+        if (colon <= 0 || colon == lastEventId.length() - 1) {
+            return null;
+        }
+        try {
+            Long.parseLong(lastEventId.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new String[]{lastEventId.substring(0, colon), lastEventId.substring(colon + 1)};
+    }
+
+    public boolean exists(String generationId) {
+        return Boolean.TRUE.equals(redisTemplate.hasKey(KEY_PREFIX + generationId));
+    }
+
+    // 回放 afterSeq 之后的帧并继续跟随，直到最后一帧；长时间没有新帧（生成节点宕机）时结束
+    public Flux<ServerSentEvent<String>> resume(String generationId, long afterSeq) {
+        ChatProperties.Resume config = chatProperties.getStream().getResume();
+        String key = KEY_PREFIX + generationId;
+        AtomicLong last = new AtomicLong(afterSeq);
+        meterRegistry.counter("chat.stream.resume").increment();
+        // 续传期间保持接入标记（过期时间与空闲超时一致，收到新帧时续期，最多每 1/3 空闲超时写一次）
+        String attachedKey = key + ATTACHED_SUFFIX;
+        Duration attachedTtl = Duration.ofMillis(config.getIdleTimeoutMs());
+        AtomicLong markedAt = new AtomicLong();
+        Runnable markAttached = () -> {
+            long now = System.currentTimeMillis();
+            long previous = markedAt.get();
+            if (now - previous >= config.getIdleTimeoutMs() / 3 && markedAt.compareAndSet(previous, now)) {
+                reactiveRedisTemplate.opsForValue().set(attachedKey, "1", attachedTtl)
+                        .subscribe(null, e -> System.out.println("续传标记写入失败 " + attachedKey + ": " + e.getMessage()));
+            }
+        };
+
+        // 按间隔轮询 XRANGE，不占用 Redis 连接做阻塞读
+        return Flux.defer(() -> reactiveRedisTemplate.opsForStream()
+                        .range(key, Range.rightUnbounded(
+                                Range.Bound.inclusive(RecordId.of(last.get() + 1, 0).getValue()))))
+                .repeatWhen(polls -> polls.delayElements(Duration.ofMillis(config.getPollIntervalMs())))
+                .doOnSubscribe(s -> markAttached.run())
+                .doOnNext(record -> {
+                    last.set(record.getId().getTimestamp());
+                    markAttached.run();
+                })
+                .takeUntil(record -> "1".equals(field(record, FIELD_TERMINAL)))
+                .map(record -> ServerSentEvent.builder(field(record, FIELD_DATA))
+                        .id(generationId + ":" + record.getId().getTimestamp())
+                        .event(field(record, FIELD_EVENT))
+                        .build())
+                .timeout(Duration.ofMillis(config.getIdleTimeoutMs()))
+                .onErrorResume(TimeoutException.class, e -> Flux.empty());
+    }
+
+    private static String field(MapRecord<String, Object, Object> record, String name) {
+        Object value = record.getValue().get(name);
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// 对冲请求策略（非流式调用）：按 模型 + 通道 统计最近 windowSize 次调用的延迟，
+// 超过 p95 仍未返回时再发一次（见 ModelCallService.HedgedCall）；
+// 对冲次数用令牌桶限制在调用量的 budgetPercent 以内，供应商整体变慢时不会把流量翻倍
+@Service
+public class HedgePolicy {
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    // 对冲预算（令牌数），每次可对冲的调用存入 budgetPercent / 100，每次对冲取出 1
+    private double budget;
+
+    // 本次调用等待多久后对冲（毫秒）；未开启、通道未启用或样本不足时返回 -1
+    public long delayMs(Models model, UpstreamScheduler.Lane lane) {
+        ChatProperties.Hedge config = chatProperties.getHedge();
+        if (!config.isEnabled() || !config.getLanes().contains(lane.getName())) {
+            return -1;
+        }
+        long p95 = window(model, lane).percentile(0.95, config.getMinSamples());
+        return p95 < 0 ? -1 : Math.max(config.getMinDelayMs(), p95);
+    }
+
+    // 单次实际请求的延迟样本（非流式调用成功收到响应）
+    public void record(Models model, UpstreamScheduler.Lane lane, long latencyNanos) {
+        window(model, lane).add(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+    }
+
+    // 一次可对冲的调用开始，存入预算
+    public void onCall(UpstreamScheduler.Lane lane) {
+        ChatProperties.Hedge config = chatProperties.getHedge();
+        synchronized (this) {
+            budget = Math.min(config.getMaxBurst(), budget + config.getBudgetPercent() / 100.0);
+        }
+        meterRegistry.counter("chat.hedge.calls", "lane", lane.getName()).increment();
+    }
+
+    // 取一个对冲名额，预算用完返回 false
+    public boolean tryHedge(UpstreamScheduler.Lane lane) {
+        boolean allowed;
+        synchronized (this) {
+            allowed = budget >= 1;
+            if (allowed) {
+                budget -= 1;
+            }
+        }
+        meterRegistry.counter(allowed ? "chat.hedge.sent" : "chat.hedge.budget.exhausted",
+                "lane", lane.getName()).increment();
+        return allowed;
+    }
+
+    // 一次可对冲调用的结果：winner 为 primary / hedge，latency 为调用方实际等待时间；
+    // 与 chat.hedge.attempt.p99（单次请求的 p99）对比即对冲带来的尾延迟改善
+    public void onComplete(UpstreamScheduler.Lane lane, String winner, long latencyNanos) {
+        meterRegistry.counter("chat.hedge.winner", "lane", lane.getName(), "winner", winner).increment();
+        Timer.builder("chat.hedge.call.latency")
+                .description("可对冲调用的端到端延迟")
+                .tag("lane", lane.getName())
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry)
+                .record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private LatencyWindow window(Models model, UpstreamScheduler.Lane lane) {
+        return windows.computeIfAbsent(model.getModelId() + ":" + lane.getName(),
+                key -> new LatencyWindow(model.getModelName(), lane));
+    }
+
+    // 最近 windowSize 次延迟（毫秒）的环形缓冲
+    private final class LatencyWindow {
+        private final long[] samples;
+        private int next;
+        private int count;
+
+        private LatencyWindow(String model, UpstreamScheduler.Lane lane) {
+            this.samples = new long[Math.max(1, chatProperties.getHedge().getWindowSize())];
+            Gauge.builder("chat.hedge.attempt.p99", this, w -> w.percentile(0.99, 1))
+                    .description("单次实际请求延迟的 p99（毫秒）")
+                    .tag("model", model).tag("lane", lane.getName())
+                    .register(meterRegistry);
+        }
+
+        private synchronized void add(long latencyMs) {
+            samples[next] = latencyMs;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        // 样本不足 minSamples 时返回 -1
+        private long percentile(double p, int minSamples) {
+            long[] sorted;
+            synchronized (this) {
+                if (count == 0 || count < minSamples) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+    }
+}
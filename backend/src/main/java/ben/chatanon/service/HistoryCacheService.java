@@ -0,0 +1,212 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Messages;
+import ben.chatanon.entity.entity_chat.roleType;
+import ben.chatanon.repository.MessageRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 会话热历史缓存（Redis List，写入即追加），聊天主流程只读缓存，未命中再回源 MySQL
+// 追加与回填都用 Lua 脚本原子执行：缓存不存在时追加只留标记，读库期间出现标记的回填直接放弃，
+// 不会出现回填覆盖掉并发追加的消息、缓存长期缺一条的情况
+@Service
+public class HistoryCacheService {
+    private static final String KEY_PREFIX = "chat:history:";
+    private static final String PENDING_SUFFIX = ":pending";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final DefaultRedisScript<Long> appendScript = script("lua/history_append.lua");
+    private final DefaultRedisScript<Long> fillScript = script("lua/history_fill.lua");
+
+    // 缓存中的单条消息
+    public record CachedMessage(int messageId, String role, String content, int tokens, String emotion, String createdAt) {
+    }
+
+    // 获取 afterMessageId 之后的最近消息（按时间正序）
+    public List<Messages> getRecent(int sessionId, int afterMessageId) {
+        List<CachedMessage> cached = read(sessionId);
+        if (cached == null) {
+            cached = load(sessionId);
+        }
+        return toHistory(cached, afterMessageId);
+    }
+
+    // 响应式版本：缓存命中时不占用线程，未命中回源 MySQL 在弹性线程池执行
+    public Mono<List<Messages>> getRecentReactive(int sessionId, int afterMessageId) {
+        return reactiveRedisTemplate.opsForList().range(key(sessionId), 0, -1)
+                .collectList()
+                .map(raw -> {
+                    List<CachedMessage> cached = new ArrayList<>(raw.size());
+                    for (String json : raw) {
+                        try {
+                            cached.add(mapper.readValue(json, CachedMessage.class));
+                        } catch (Exception e) {
+                            return List.<CachedMessage>of();
+                        }
+                    }
+                    return cached;
+                })
+                .onErrorReturn(List.of())
+                .flatMap(cached -> cached.isEmpty()
+                        ? Mono.fromCallable(() -> load(sessionId)).subscribeOn(Schedulers.boundedElastic())
+                        : Mono.just(cached))
+                .map(cached -> toHistory(cached, afterMessageId));
+    }
+
+    private List<Messages> toHistory(List<CachedMessage> cached, int afterMessageId) {
+        List<Messages> history = new ArrayList<>(cached.size());
+        int lastId = afterMessageId;
+        for (CachedMessage c : cached) {
+            // 并发回填可能产生重复项，按 messageId 严格递增去重
+            if (c.messageId() <= lastId) {
+                continue;
+            }
+            lastId = c.messageId();
+            history.add(toMessage(c));
+        }
+        return history;
+    }
+
+    // 新消息入库后追加到缓存；缓存不存在时不创建（下次读取时整体回填）
+    public void append(Messages message) {
+        int sessionId = message.getSession().getSessionId();
+        ChatProperties.HistoryCache config = chatProperties.getHistoryCache();
+        try {
+            redisTemplate.execute(appendScript, List.of(key(sessionId), pendingKey(sessionId)),
+                    mapper.writeValueAsString(toCached(message)),
+                    String.valueOf(config.getMaxMessages()), String.valueOf(ttlSeconds(config)));
+        } catch (Exception e) {
+            // 缓存写失败不影响主流程，直接丢弃缓存等待回填
+            evict(message.getSession().getSessionId());
+        }
+    }
+
+    // 清空 / 删除消息时让缓存失效；同时留下追加标记，让失效之前已读完库的回填放弃写入
+    public void evict(int sessionId) {
+        try {
+            redisTemplate.delete(key(sessionId));
+            redisTemplate.opsForValue().set(pendingKey(sessionId), "1",
+                    Duration.ofSeconds(ttlSeconds(chatProperties.getHistoryCache())));
+        } catch (Exception ignored) {
+        }
+    }
+
+    private List<CachedMessage> read(int sessionId) {
+        try {
+            List<String> raw = redisTemplate.opsForList().range(key(sessionId), 0, -1);
+            if (raw == null || raw.isEmpty()) {
+                return null;
+            }
+            List<CachedMessage> cached = new ArrayList<>(raw.size());
+            for (String json : raw) {
+                cached.add(mapper.readValue(json, CachedMessage.class));
+            }
+            return cached;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // 缓存未命中：从 MySQL 取最近若干条并回填
+    private List<CachedMessage> load(int sessionId) {
+        ChatProperties.HistoryCache config = chatProperties.getHistoryCache();
+        // 读库之前清掉追加标记，之后再出现标记说明读库期间有新消息，这次回填作废
+        try {
+            redisTemplate.delete(pendingKey(sessionId));
+        } catch (Exception ignored) {
+        }
+        List<Messages> recent = new ArrayList<>(
+                messageRepository.findRecentBySessionId(sessionId, 0, config.getMaxMessages()));
+        Collections.reverse(recent);
+
+        List<CachedMessage> cached = new ArrayList<>(recent.size());
+        for (Messages m : recent) {
+            cached.add(toCached(m));
+        }
+        if (cached.isEmpty()) {
+            return cached;
+        }
+
+        try {
+            List<String> args = new ArrayList<>(cached.size() + 2);
+            args.add(String.valueOf(config.getMaxMessages()));
+            args.add(String.valueOf(ttlSeconds(config)));
+            for (CachedMessage c : cached) {
+                args.add(mapper.writeValueAsString(c));
+            }
+            redisTemplate.execute(fillScript, List.of(key(sessionId), pendingKey(sessionId)), args.toArray());
+        } catch (Exception ignored) {
+        }
+        return cached;
+    }
+
+    private CachedMessage toCached(Messages m) {
+        return new CachedMessage(
+                m.getMessageId(),
+                m.getRole().name(),
+                m.getContent(),
+                m.getTokens(),
+                m.getEmotion(),
+                m.getCreatedAt() == null ? null : m.getCreatedAt().toString()
+        );
+    }
+
+    private Messages toMessage(CachedMessage c) {
+        Messages m = new Messages();
+        m.setMessageId(c.messageId());
+        m.setRole(roleType.valueOf(c.role()));
+        m.setContent(c.content());
+        m.setTokens(c.tokens());
+        m.setEmotion(c.emotion());
+        m.setCreatedAt(c.createdAt() == null ? null : LocalDateTime.parse(c.createdAt()));
+        return m;
+    }
+
+    private String key(int sessionId) {
+        return KEY_PREFIX + sessionId;
+    }
+
+    private String pendingKey(int sessionId) {
+        return KEY_PREFIX + sessionId + PENDING_SUFFIX;
+    }
+
+    private static long ttlSeconds(ChatProperties.HistoryCache config) {
+        return TimeUnit.MINUTES.toSeconds(config.getTtlMinutes());
+    }
+
+    private static DefaultRedisScript<Long> script(String path) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
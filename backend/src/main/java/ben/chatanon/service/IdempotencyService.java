@@ -0,0 +1,181 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.util.ChatStreamProtocol;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+// 发送消息幂等：客户端网络抖动后重试同一请求（相同 idempotencyKey）时，不再保存第二条 user 消息、
+// 不再发起第二次付费生成；重复请求接入进行中的回答（断线续传 Stream）或直接返回已完成的结果
+// 去重记录放在 Redis（chat:idem:{sessionId}:{key}），多节点共享
+@Service
+public class IdempotencyService {
+    private static final String KEY_PREFIX = "chat:idem:";
+    private static final String PENDING = "pending";
+    private static final String DONE = "done";
+    // 幂等键最大长度，超出视为无效（不去重）
+    private static final int MAX_KEY_LENGTH = 128;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    @Autowired
+    private GenerationStreamService generationStreamService;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // 去重记录：state 为 pending / done，generationId 为原请求的生成 id（非流式请求为 null）
+    public record Entry(String state, String generationId, String content, String emotion) {
+    }
+
+    // 记录已不存在（原请求失败后被删除或已过期）
+    private static final Entry GONE = new Entry(null, null, null, null);
+
+    // 一次占用；duplicate 不为 null 时表示是重复请求，不应再生成
+    public static final class Claim {
+        private static final Claim NONE = new Claim(null, null);
+
+        private final String key;
+        private final Entry duplicate;
+
+        private Claim(String key, Entry duplicate) {
+            this.key = key;
+            this.duplicate = duplicate;
+        }
+
+        public boolean isDuplicate() {
+            return duplicate != null;
+        }
+
+        public Entry getDuplicate() {
+            return duplicate;
+        }
+    }
+
+    // 占用幂等键（SET NX）；没有键、功能关闭或 Redis 不可用时不去重
+    public Claim claim(int sessionId, String idempotencyKey, String generationId) {
+        ChatProperties.Idempotency config = chatProperties.getIdempotency();
+        if (!config.isEnabled() || idempotencyKey == null || idempotencyKey.isBlank()
+                || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            return Claim.NONE;
+        }
+        String key = KEY_PREFIX + sessionId + ":" + idempotencyKey.trim();
+        try {
+            String pending = mapper.writeValueAsString(new Entry(PENDING, generationId, null, null));
+            Duration ttl = Duration.ofMillis(config.getTtlMs());
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(key, pending, ttl))) {
+                    meterRegistry.counter("chat.idempotency", "result", "miss").increment();
+                    return new Claim(key, null);
+                }
+                String existing = redisTemplate.opsForValue().get(key);
+                if (existing != null) {
+                    Entry entry = mapper.readValue(existing, Entry.class);
+                    meterRegistry.counter("chat.idempotency", "result",
+                            DONE.equals(entry.state()) ? "hit_completed" : "hit_inflight").increment();
+                    return new Claim(key, entry);
+                }
+                // 两次调用之间记录刚好过期或被释放，重试一次
+            }
+        } catch (Exception e) {
+            System.out.println("幂等检查失败: " + e.getMessage());
+        }
+        return Claim.NONE;
+    }
+
+    // 原请求完成（含断开后保存的部分回答），记录结果供重复请求直接返回
+    public void complete(Claim claim, String content, String emotion) {
+        if (claim.key == null || claim.isDuplicate()) {
+            return;
+        }
+        try {
+            String existing = redisTemplate.opsForValue().get(claim.key);
+            String generationId = existing == null ? null : mapper.readValue(existing, Entry.class).generationId();
+            redisTemplate.opsForValue().set(claim.key,
+                    mapper.writeValueAsString(new Entry(DONE, generationId, content, emotion)),
+                    Duration.ofMillis(chatProperties.getIdempotency().getTtlMs()));
+        } catch (Exception e) {
+            System.out.println("幂等记录写入失败: " + e.getMessage());
+        }
+    }
+
+    // 原请求失败或被拒绝：删除记录，客户端可以用同一个键重试
+    public void release(Claim claim) {
+        if (claim.key == null || claim.isDuplicate()) {
+            return;
+        }
+        try {
+            redisTemplate.delete(claim.key);
+        } catch (Exception e) {
+            System.out.println("幂等记录删除失败: " + e.getMessage());
+        }
+    }
+
+    // 流式重复请求：原回答的续传 Stream 还在时从头回放并继续跟随；
+    // 否则等待原请求完成，把完整回答作为单个内容帧返回
+    public Flux<ServerSentEvent<String>> replay(ChatStreamProtocol protocol, Claim claim) {
+        Entry entry = claim.getDuplicate();
+        if (entry.generationId() != null && generationStreamService.exists(entry.generationId())) {
+            return generationStreamService.resume(entry.generationId(), 0);
+        }
+        return awaitDone(claim)
+                .flatMapMany(done -> Flux.just(
+                        protocol.text(done.content()),
+                        protocol.emotion(done.emotion() == null ? EmotionService.DEFAULT : done.emotion()),
+                        protocol.done(null, -1, -1)))
+                .switchIfEmpty(Flux.just(protocol.error("原请求失败，请重试")))
+                .map(frame -> frame.toServerSentEvent(null));
+    }
+
+    // 非流式重复请求：等待原请求完成并返回回答内容，原请求失败时抛出异常
+    public String awaitContent(Claim claim) {
+        Entry done = awaitDone(claim).block();
+        if (done == null) {
+            throw new RuntimeException("原请求失败，请重试");
+        }
+        return done.content();
+    }
+
+    // 轮询去重记录直到 done；记录被删除（原请求失败）或等待超时返回空
+    private Mono<Entry> awaitDone(Claim claim) {
+        ChatProperties.Idempotency config = chatProperties.getIdempotency();
+        if (DONE.equals(claim.getDuplicate().state())) {
+            return Mono.just(claim.getDuplicate());
+        }
+        return Mono.defer(() -> reactiveRedisTemplate.opsForValue().get(claim.key))
+                .map(this::parse)
+                .defaultIfEmpty(GONE)
+                .repeatWhen(polls -> polls.delayElements(Duration.ofMillis(config.getPollIntervalMs())))
+                .takeUntil(entry -> !PENDING.equals(entry.state()))
+                .last()
+                .filter(entry -> DONE.equals(entry.state()))
+                .timeout(Duration.ofMillis(config.getWaitTimeoutMs()), Mono.empty())
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    private Entry parse(String json) {
+        try {
+            return mapper.readValue(json, Entry.class);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.L2DAction;
+import ben.chatanon.repository.L2DActionRepository;
+import ben.chatanon.util.AhoCorasick;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// 本地情感分类：按 Live2D 模型的关键词 / emoji 词表（live2daction.keywords）给最近几条消息打分，
+// 返回得分最高的 actionCode，不走网络
+// 词表格式：逗号或换行分隔，可写 "关键词:权重"，权重缺省为 1
+@Service
+public class LocalEmotionClassifier {
+    @Autowired
+    private L2DActionRepository l2DActionRepository;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    // 预编译的词表自动机，按 live2dId 缓存，定期重新加载
+    private final Map<Integer, Lexicon> lexicons = new ConcurrentHashMap<>();
+
+    private record Keyword(String actionCode, double weight) {
+    }
+
+    private record Lexicon(AhoCorasick<Keyword> automaton, int size, long loadedAt) {
+    }
+
+    // label 为 null 表示没有命中任何关键词；confident 为 false 时结果只能作参考
+    public record Result(String label, double score, boolean confident) {
+        static final Result NONE = new Result(null, 0, false);
+    }
+
+    // messages 为按时间正序的 user / assistant 消息，越新的消息权重越高
+    public Result classify(Integer live2dId, List<Map<String, String>> messages) {
+        if (live2dId == null || messages.isEmpty()) {
+            return Result.NONE;
+        }
+        Lexicon lexicon = lexicon(live2dId);
+        if (lexicon.size() == 0) {
+            return Result.NONE;
+        }
+
+        ChatProperties.LocalClassifier config = chatProperties.getEmotion().getLocal();
+        Map<String, Double> scores = new HashMap<>();
+        double recency = 1.0;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            String content = messages.get(i).get("content");
+            if (content != null) {
+                double w = recency;
+                lexicon.automaton().search(content,
+                        (k, end) -> scores.merge(k.actionCode(), k.weight() * w, Double::sum));
+            }
+            recency *= config.getDecay();
+        }
+        if (scores.isEmpty()) {
+            return Result.NONE;
+        }
+
+        String best = null;
+        double top = 0;
+        double second = 0;
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            double s = e.getValue();
+            if (s > top) {
+                second = top;
+                top = s;
+                best = e.getKey();
+            } else if (s > second) {
+                second = s;
+            }
+        }
+        // 分数够高且与第二名拉开差距才算确定
+        boolean confident = top >= config.getMinScore() && top - second >= config.getMinMargin();
+        return new Result(best, top, confident);
+    }
+
+    private Lexicon lexicon(int live2dId) {
+        long now = System.currentTimeMillis();
+        long ttl = TimeUnit.MINUTES.toMillis(chatProperties.getEmotion().getLocal().getLexiconRefreshMinutes());
+        Lexicon cached = lexicons.get(live2dId);
+        if (cached != null && now - cached.loadedAt() < ttl) {
+            return cached;
+        }
+        Lexicon loaded = load(live2dId, now);
+        lexicons.put(live2dId, loaded);
+        return loaded;
+    }
+
+    private Lexicon load(int live2dId, long now) {
+        AhoCorasick.Builder<Keyword> builder = AhoCorasick.builder();
+        for (L2DAction action : l2DActionRepository.findByLive2dId(live2dId)) {
+            String keywords = action.getKeywords();
+            if (keywords == null || keywords.isBlank()) {
+                continue;
+            }
+            for (String entry : keywords.split("[,，\\n]")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                double weight = 1.0;
+                int colon = entry.lastIndexOf(':');
+                if (colon > 0 && colon < entry.length() - 1) {
+                    try {
+                        weight = Double.parseDouble(entry.substring(colon + 1));
+                        entry = entry.substring(0, colon);
+                    } catch (NumberFormatException ignored) {
+                        // 不是权重，冒号是关键词本身的一部分（如 ":)"）
+                    }
+                }
+                builder.add(entry, new Keyword(action.getActionCode(), weight));
+            }
+        }
+        return new Lexicon(builder.build(), builder.size(), now);
+    }
+}
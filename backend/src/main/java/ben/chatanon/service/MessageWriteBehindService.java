@@ -0,0 +1,260 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Messages;
+import ben.chatanon.repository.MessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 聊天消息异步批量落库（write-behind）：消息先进入有界队列，按间隔或批量大小用 JDBC batch 插入
+// 未落库的消息按会话保留一份，读取历史时合并，保证同一会话读到自己的写入
+@Service
+public class MessageWriteBehindService {
+    private static final String INSERT_SQL = """
+            INSERT INTO messages (sessionId, content, tokens, createdAt, role, emotion, truncated, promptTokens, completionTokens, modelId)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private HistoryCacheService historyCacheService;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    @Autowired
+    private ThreadPoolTaskExecutor chatTaskExecutor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private BlockingQueue<Messages> queue;
+    // 每个会话尚未落库（或已落库但还未写入缓存）的消息
+    private final Map<Integer, Queue<Messages>> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private volatile boolean shuttingDown;
+    private ScheduledFuture<?> flushTask;
+
+    private Counter syncFallbackCounter;
+    private Counter failedCounter;
+    private DistributionSummary batchSizeSummary;
+    private Timer flushTimer;
+
+    @PostConstruct
+    public void init() {
+        ChatProperties.WriteBehind config = chatProperties.getWriteBehind();
+        queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+
+        Gauge.builder("chat.message.writebehind.queue", queue, BlockingQueue::size)
+                .description("等待落库的消息数")
+                .register(meterRegistry);
+        syncFallbackCounter = Counter.builder("chat.message.writebehind.fallback")
+                .description("队列已满，改为同步写入的消息数")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("chat.message.writebehind.failed")
+                .description("批量与逐条重试都失败、未能落库的消息数")
+                .register(meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("chat.message.writebehind.batch")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("chat.message.writebehind.flush")
+                .register(meterRegistry);
+
+        if (config.isEnabled()) {
+            flushTask = chatTaskScheduler.scheduleWithFixedDelay(
+                    this::flushQuietly, Duration.ofMillis(config.getFlushIntervalMs()));
+        }
+    }
+
+    // 保存消息：开启 write-behind 时入队异步落库，否则（或队列已满时）同步写入
+    public void save(Messages message) {
+        ChatProperties.WriteBehind config = chatProperties.getWriteBehind();
+        if (!config.isEnabled() || shuttingDown) {
+            saveNow(message);
+            return;
+        }
+
+        int sessionId = message.getSession().getSessionId();
+        // 与 removePending 在同一个 map 节点锁内完成，不会加入一个刚被移除的空队列
+        pending.compute(sessionId, (id, sessionPending) -> {
+            Queue<Messages> queued = sessionPending != null ? sessionPending : new ConcurrentLinkedQueue<>();
+            queued.add(message);
+            return queued;
+        });
+        boolean accepted;
+        try {
+            accepted = queue.offer(message, config.getOfferTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            // 背压：队列满了就由调用线程同步写入
+            syncFallbackCounter.increment();
+            try {
+                saveNow(message);
+            } finally {
+                removePending(message);
+            }
+            return;
+        }
+
+        // 攒够一批立即触发 flush，不等定时器
+        if (queue.size() >= config.getBatchSize() && flushRequested.compareAndSet(false, true)) {
+            chatTaskExecutor.execute(() -> {
+                flushRequested.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    // 某会话尚未写入缓存的消息（按写入顺序）
+    // 读取历史时必须在读缓存 / 数据库之前取快照：消息先写入缓存再移出 pending，
+    // 先读缓存后取 pending 时，中间完成的 flush 会让这条消息两边都看不到
+    public List<Messages> pendingOf(int sessionId) {
+        Queue<Messages> sessionPending = pending.get(sessionId);
+        return sessionPending == null ? List.of() : new ArrayList<>(sessionPending);
+    }
+
+    // 立即把队列中的消息全部落库（清空 / 删除消息前调用，保证顺序）
+    public void flush() {
+        flushLock.lock();
+        try {
+            int batchSize = chatProperties.getWriteBehind().getBatchSize();
+            List<Messages> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // 停机时不再接收新消息，并把剩余消息全部落库
+    @PreDestroy
+    public void shutdown() {
+        shuttingDown = true;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            System.out.println("消息批量落库失败: " + e.getMessage());
+        }
+    }
+
+    private void writeBatch(List<Messages> batch) {
+        long start = System.nanoTime();
+        try {
+            jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                    for (Messages m : batch) {
+                        ps.setInt(1, m.getSession().getSessionId());
+                        ps.setString(2, m.getContent());
+                        ps.setInt(3, m.getTokens());
+                        ps.setTimestamp(4, Timestamp.valueOf(m.getCreatedAt()));
+                        ps.setString(5, m.getRole().name());
+                        if (m.getEmotion() == null) {
+                            ps.setNull(6, Types.VARCHAR);
+                        } else {
+                            ps.setString(6, m.getEmotion());
+                        }
+                        ps.setBoolean(7, m.isTruncated());
+                        ps.setObject(8, m.getPromptTokens(), Types.INTEGER);
+                        ps.setObject(9, m.getCompletionTokens(), Types.INTEGER);
+                        ps.setObject(10, m.getModelId(), Types.INTEGER);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    try (ResultSet keys = ps.getGeneratedKeys()) {
+                        for (int i = 0; i < batch.size() && keys.next(); i++) {
+                            batch.get(i).setMessageId(keys.getInt(1));
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 批量失败时逐条回退到 JPA 写入，单条失败只丢这一条
+            System.out.println("消息批量落库失败，逐条重试: " + e.getMessage());
+            for (Messages m : batch) {
+                try {
+                    if (m.getMessageId() == 0) {
+                        messageRepository.save(m);
+                    }
+                } catch (Exception ex) {
+                    System.out.println("消息落库失败 sessionId=" + m.getSession().getSessionId() + ": " + ex.getMessage());
+                }
+            }
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSizeSummary.record(batch.size());
+
+        // 先写入缓存再移出 pending（读取方先取 pending 快照再读缓存，按 messageId 去重）
+        for (Messages m : batch) {
+            if (m.getMessageId() == 0) {
+                // 没有落库的消息不写入缓存，否则缓存里会出现数据库中不存在的消息
+                failedCounter.increment();
+            } else {
+                historyCacheService.append(m);
+            }
+            removePending(m);
+        }
+    }
+
+    private void removePending(Messages message) {
+        pending.computeIfPresent(message.getSession().getSessionId(), (id, sessionPending) -> {
+            sessionPending.remove(message);
+            return sessionPending.isEmpty() ? null : sessionPending;
+        });
+    }
+
+    private void saveNow(Messages message) {
+        messageRepository.save(message);
+        historyCacheService.append(message);
+    }
+}
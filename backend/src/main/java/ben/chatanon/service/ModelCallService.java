@@ -0,0 +1,564 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// 模型调用：按通道排队拿供应商并发名额（UpstreamScheduler），经过模型熔断器（CircuitBreakerRegistry），
+// 收到响应头之前的失败（连接失败、超时、429 / 5xx）按指数退避 + 随机抖动重试；
+// 响应已开始输出后不再重试，避免回答重复下发；每次实际请求的延迟、失败和在途数上报给 ModelRouter
+@Service
+public class ModelCallService {
+    @Autowired
+    private UpstreamClientRegistry upstreamClientRegistry;
+
+    @Autowired
+    private UpstreamScheduler upstreamScheduler;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Autowired
+    private ModelRouter modelRouter;
+
+    @Autowired
+    private HedgePolicy hedgePolicy;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 流式调用（读超时即流空闲超时）
+    public ModelCall streaming(Models model, Request request, UpstreamScheduler.Lane lane) {
+        return new ModelCall(model, upstreamClientRegistry.streaming(model), request, lane, false);
+    }
+
+    // 非流式调用（带整体调用超时）
+    public ModelCall blocking(Models model, Request request, UpstreamScheduler.Lane lane) {
+        return new ModelCall(model, upstreamClientRegistry.blocking(model), request, lane, true);
+    }
+
+    // 可对冲的非流式调用；request 按实际发往的部署构建（对冲请求可能发往同组的其它成员）
+    public HedgedCall hedged(Models model, Function<Models, Request> request, UpstreamScheduler.Lane lane) {
+        return new HedgedCall(model, request, lane);
+    }
+
+    // 供应商返回非 2xx（重试用完后的 429 / 5xx，或不重试的其它 4xx），message 带响应体开头
+    public static class HttpStatusException extends IOException {
+        private final int status;
+
+        public HttpStatusException(int status, String body) {
+            super("模型调用失败：HTTP " + status + (body == null || body.isEmpty() ? "" : " " + body));
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    // 一次逻辑调用，可能包含多次实际请求；cancel 会取消当前请求并停止后续重试
+    // 只有 2xx 响应交给调用方，非 2xx 以 HttpStatusException 失败（execute 抛出 / enqueue 回调 onFailure）
+    public final class ModelCall {
+        private final Models model;
+        private final OkHttpClient client;
+        private final Request request;
+        private final UpstreamScheduler.Lane lane;
+        // 非流式调用的延迟样本用于计算对冲等待时间
+        private final boolean blocking;
+        private volatile Call current;
+        // 当前实际请求排队等待供应商并发名额的 future，取消时一并取消以立即退出排队
+        private volatile CompletableFuture<UpstreamScheduler.Lease> waiting;
+        private volatile boolean canceled;
+
+        private ModelCall(Models model, OkHttpClient client, Request request, UpstreamScheduler.Lane lane,
+                          boolean blocking) {
+            this.model = model;
+            this.client = client;
+            this.request = request;
+            this.lane = lane;
+            this.blocking = blocking;
+        }
+
+        public void cancel() {
+            canceled = true;
+            Call call = current;
+            if (call != null) {
+                call.cancel();
+            }
+            CompletableFuture<UpstreamScheduler.Lease> queued = waiting;
+            if (queued != null) {
+                queued.cancel(false);
+            }
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        // 记录排队中的 future；cancel 与排队并发时补一次取消
+        private void waiting(CompletableFuture<UpstreamScheduler.Lease> future) {
+            waiting = future;
+            if (canceled) {
+                future.cancel(false);
+            }
+        }
+
+        // 同步调用；熔断打开时立即抛出 CircuitOpenException，非 2xx 抛出 HttpStatusException
+        public Response execute() throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                if (canceled) {
+                    throw new IOException("Canceled");
+                }
+                CircuitBreakerRegistry.Breaker breaker = acquireBreaker(model);
+                Call call = newCall();
+                Response response;
+                CompletableFuture<UpstreamScheduler.Lease> queued = upstreamScheduler.submit(model, lane);
+                waiting(queued);
+                try (UpstreamScheduler.Lease lease = upstreamScheduler.acquire(queued, lane)) {
+                    modelRouter.onStart(model);
+                    try {
+                        response = call.execute();
+                    } finally {
+                        modelRouter.onEnd(model);
+                    }
+                } catch (IOException e) {
+                    if (call.isCanceled()) {
+                        ignored(breaker);
+                        throw e;
+                    }
+                    failed(model, breaker);
+                    if (!canRetry(attempt)) {
+                        throw e;
+                    }
+                    backoff(attempt, e.getMessage());
+                    continue;
+                } catch (RuntimeException e) {
+                    // 排队被丢弃等本地拒绝，不计入熔断
+                    ignored(breaker);
+                    throw e;
+                }
+                if (!isRetryable(response.code())) {
+                    succeeded(breaker, response);
+                    if (!response.isSuccessful()) {
+                        throw statusFailure(response);
+                    }
+                    return response;
+                }
+                failed(model, breaker);
+                if (!canRetry(attempt)) {
+                    throw statusFailure(response);
+                }
+                response.close();
+                backoff(attempt, "HTTP " + response.code());
+            }
+        }
+
+        // 异步调用；熔断打开、排队被丢弃时以 IOException（cause 为原异常）回调 onFailure
+        public void enqueue(Callback callback) {
+            attempt(0, callback);
+        }
+
+        private void attempt(int attempt, Callback callback) {
+            Call call = newCall();
+            if (canceled) {
+                callback.onFailure(call, new IOException("Canceled"));
+                return;
+            }
+            CircuitBreakerRegistry.Breaker breaker;
+            try {
+                breaker = acquireBreaker(model);
+            } catch (CircuitBreakerRegistry.CircuitOpenException e) {
+                callback.onFailure(call, new IOException(e.getMessage(), e));
+                return;
+            }
+            modelRouter.onStart(model);
+            waiting(upstreamScheduler.enqueue(model, lane, call, new Callback() {
+                @Override
+                public void onFailure(Call c, IOException e) {
+                    modelRouter.onEnd(model);
+                    if (c.isCanceled() || canceled || e.getCause() instanceof UpstreamScheduler.DroppedException) {
+                        ignored(breaker);
+                        callback.onFailure(c, e);
+                        return;
+                    }
+                    failed(model, breaker);
+                    if (!canRetry(attempt)) {
+                        callback.onFailure(c, e);
+                        return;
+                    }
+                    scheduleRetry(attempt, callback, e.getMessage());
+                }
+
+                @Override
+                public void onResponse(Call c, Response response) throws IOException {
+                    try {
+                        if (!isRetryable(response.code())) {
+                            succeeded(breaker, response);
+                            if (response.isSuccessful()) {
+                                callback.onResponse(c, response);
+                            } else {
+                                callback.onFailure(c, statusFailure(response));
+                            }
+                            return;
+                        }
+                        failed(model, breaker);
+                        if (!canRetry(attempt) || canceled) {
+                            callback.onFailure(c, statusFailure(response));
+                            return;
+                        }
+                        response.close();
+                    } finally {
+                        // 流式响应读完才算结束
+                        modelRouter.onEnd(model);
+                    }
+                    scheduleRetry(attempt, callback, "HTTP " + response.code());
+                }
+            }));
+        }
+
+        private void scheduleRetry(int attempt, Callback callback, String reason) {
+            long delay = delayMs(attempt);
+            retried(reason, delay);
+            chatTaskScheduler.schedule(() -> attempt(attempt + 1, callback), Instant.now().plusMillis(delay));
+        }
+
+        private Call newCall() {
+            Call call = client.newCall(request);
+            current = call;
+            // cancel 与新建请求并发时补一次取消
+            if (canceled) {
+                call.cancel();
+            }
+            return call;
+        }
+
+        private void backoff(int attempt, String reason) throws IOException {
+            long delay = delayMs(attempt);
+            retried(reason, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Canceled", e);
+            }
+        }
+
+        private void succeeded(CircuitBreakerRegistry.Breaker breaker, Response response) {
+            long latency = latencyOf(response);
+            ModelCallService.this.succeeded(model, breaker, latency);
+            if (blocking) {
+                hedgePolicy.record(model, lane, latency);
+            }
+        }
+
+        private void retried(String reason, long delay) {
+            meterRegistry.counter("chat.upstream.retry", "model", model.getModelName(), "lane", lane.getName())
+                    .increment();
+            System.out.println("上游调用重试 " + model.getModelVersion() + " (" + reason + ")，" + delay + "ms 后重试");
+        }
+    }
+
+    // 对冲调用：等待超过该模型非流式调用的 p95 仍未返回时，在预算内再发一次（优先发往同组的其它成员），
+    // 取先成功返回的结果并取消另一个；未开启对冲或样本不足时就是一次普通调用
+    public final class HedgedCall {
+        private final Models model;
+        private final Function<Models, Request> request;
+        private final UpstreamScheduler.Lane lane;
+        private final List<ModelCall> calls = new CopyOnWriteArrayList<>();
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+        private volatile boolean canceled;
+        private volatile Models winner;
+        // 以下字段由 this 保护：在途请求数、是否还能发起对冲
+        private int pending;
+        private boolean hedgeClosed;
+        private String winnerName;
+
+        private HedgedCall(Models model, Function<Models, Request> request, UpstreamScheduler.Lane lane) {
+            this.model = model;
+            this.request = request;
+            this.lane = lane;
+        }
+
+        public void cancel() {
+            canceled = true;
+            for (ModelCall call : calls) {
+                call.cancel();
+            }
+        }
+
+        // 实际返回结果的部署（对冲请求胜出且发往其它成员时与传入的 model 不同）
+        public Models getModel() {
+            return winner != null ? winner : model;
+        }
+
+        public Response execute() throws IOException {
+            long delay = hedgePolicy.delayMs(model, lane);
+            if (delay < 0) {
+                return start(model).execute();
+            }
+            hedgePolicy.onCall(lane);
+            long startedAt = System.nanoTime();
+            synchronized (this) {
+                pending = 1;
+            }
+            ModelCall primary = start(model);
+            primary.enqueue(settle(primary, "primary"));
+            ScheduledFuture<?> hedge = chatTaskScheduler.schedule(this::hedge, Instant.now().plusMillis(delay));
+            try {
+                Response response = result.get();
+                hedgePolicy.onComplete(lane, winnerName(), System.nanoTime() - startedAt);
+                return response;
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new IOException("Canceled", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                if (e.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                hedge.cancel(false);
+            }
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (hedgeClosed || result.isDone() || canceled) {
+                    return;
+                }
+                hedgeClosed = true;
+                if (!hedgePolicy.tryHedge(lane)) {
+                    return;
+                }
+                pending++;
+            }
+            Models target = chatProperties.getHedge().isAlternate() ? modelRouter.alternate(model) : model;
+            ModelCall second = start(target);
+            second.enqueue(settle(second, "hedge"));
+        }
+
+        private ModelCall start(Models target) {
+            ModelCall call = new ModelCall(target, upstreamClientRegistry.blocking(target), request.apply(target),
+                    lane, true);
+            calls.add(call);
+            if (canceled) {
+                call.cancel();
+            }
+            return call;
+        }
+
+        // 成功响应（只会是 2xx）直接胜出；失败（含 HttpStatusException）时若另一个请求还在途则继续等它
+        private Callback settle(ModelCall attempt, String name) {
+            return new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    finish(attempt, name, null, e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    finish(attempt, name, response, null);
+                }
+            };
+        }
+
+        private void finish(ModelCall attempt, String name, Response response, IOException error) {
+            boolean deliver;
+            synchronized (this) {
+                pending--;
+                if (response == null && pending > 0) {
+                    return;
+                }
+                // 主请求已失败，不再对冲
+                hedgeClosed = true;
+                deliver = !result.isDone();
+                if (deliver) {
+                    winnerName = name;
+                    winner = attempt.model;
+                }
+            }
+            boolean delivered = deliver && (response != null
+                    ? result.complete(response)
+                    : result.completeExceptionally(error));
+            if (!delivered) {
+                if (response != null) {
+                    response.close();
+                }
+                return;
+            }
+            // 取消落败的请求
+            for (ModelCall call : calls) {
+                if (call != attempt) {
+                    call.cancel();
+                }
+            }
+        }
+
+        private synchronized String winnerName() {
+            return winnerName;
+        }
+    }
+
+    // 响应式流式调用：attempt 每次订阅发出一次实际请求，非 2xx 以 WebClientResponseException 失败；
+    // 在收到第一个元素之前失败才重试
+    public <T> Flux<T> reactive(Models model, UpstreamScheduler.Lane lane, Supplier<Flux<T>> attempt) {
+        AtomicBoolean firstByte = new AtomicBoolean(false);
+        return Flux.defer(() -> {
+            CircuitBreakerRegistry.Breaker breaker = acquireBreaker(model);
+            AtomicBoolean reported = new AtomicBoolean(false);
+            long[] sentAt = new long[1];
+            return Mono.fromFuture(() -> upstreamScheduler.submit(model, lane))
+                    .flatMapMany(lease -> {
+                        sentAt[0] = System.nanoTime();
+                        modelRouter.onStart(model);
+                        return attempt.get().doFinally(signal -> {
+                            modelRouter.onEnd(model);
+                            lease.release();
+                        });
+                    })
+                    .doOnNext(item -> {
+                        firstByte.set(true);
+                        if (reported.compareAndSet(false, true)) {
+                            succeeded(model, breaker, System.nanoTime() - sentAt[0]);
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        if (reported.compareAndSet(false, true)) {
+                            succeeded(model, breaker, System.nanoTime() - sentAt[0]);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (reported.compareAndSet(false, true)) {
+                            if (isProviderFailure(e)) {
+                                failed(model, breaker);
+                            } else if (e instanceof WebClientResponseException) {
+                                // 其它 4xx 说明供应商可用
+                                succeeded(model, breaker, System.nanoTime() - sentAt[0]);
+                            } else {
+                                ignored(breaker);
+                            }
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        if (reported.compareAndSet(false, true)) {
+                            ignored(breaker);
+                        }
+                    });
+        }).retryWhen(Retry.from(signals -> signals.concatMap(signal -> {
+            Throwable failure = signal.failure();
+            if (firstByte.get() || !isProviderFailure(failure) || !canRetry((int) signal.totalRetries())) {
+                return Mono.error(failure);
+            }
+            long delay = delayMs((int) signal.totalRetries());
+            meterRegistry.counter("chat.upstream.retry", "model", model.getModelName(), "lane", lane.getName())
+                    .increment();
+            System.out.println("上游调用重试 " + model.getModelVersion() + " (" + failure.getMessage() + ")，"
+                    + delay + "ms 后重试");
+            return Mono.delay(Duration.ofMillis(delay));
+        })));
+    }
+
+    private CircuitBreakerRegistry.Breaker acquireBreaker(Models model) {
+        CircuitBreakerRegistry.Breaker breaker = circuitBreakerRegistry.of(model);
+        if (breaker != null) {
+            breaker.acquire();
+        }
+        return breaker;
+    }
+
+    private void succeeded(Models model, CircuitBreakerRegistry.Breaker breaker, long latencyNanos) {
+        if (breaker != null) {
+            breaker.onSuccess();
+        }
+        modelRouter.onSuccess(model, latencyNanos);
+    }
+
+    private void failed(Models model, CircuitBreakerRegistry.Breaker breaker) {
+        if (breaker != null) {
+            breaker.onFailure();
+        }
+        modelRouter.onFailure(model);
+    }
+
+    private static void ignored(CircuitBreakerRegistry.Breaker breaker) {
+        if (breaker != null) {
+            breaker.onIgnored();
+        }
+    }
+
+    // 读出响应体开头作为错误信息并关闭响应
+    private static HttpStatusException statusFailure(Response response) {
+        String body = null;
+        try (response) {
+            if (response.body() != null) {
+                body = response.peekBody(512).string();
+            }
+        } catch (IOException ignored) {
+        }
+        return new HttpStatusException(response.code(), body);
+    }
+
+    private static long latencyOf(Response response) {
+        return TimeUnit.MILLISECONDS.toNanos(response.receivedResponseAtMillis() - response.sentRequestAtMillis());
+    }
+
+    // 供应商限流或服务端错误
+    private static boolean isRetryable(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    private static boolean isProviderFailure(Throwable e) {
+        if (e instanceof WebClientResponseException re) {
+            return isRetryable(re.getStatusCode().value());
+        }
+        return e instanceof WebClientRequestException || e instanceof IOException;
+    }
+
+    private boolean canRetry(int attempt) {
+        return attempt < chatProperties.getRetry().getMaxRetries();
+    }
+
+    // 全抖动：[0, min(maxDelayMs, baseDelayMs * 2^attempt)) 内随机，避免大量请求同时重试
+    private long delayMs(int attempt) {
+        ChatProperties.Retry config = chatProperties.getRetry();
+        long cap = Math.min(config.getMaxDelayMs(), config.getBaseDelayMs() << Math.min(attempt, 20));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap);
+    }
+}
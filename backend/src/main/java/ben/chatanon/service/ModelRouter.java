@@ -0,0 +1,173 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import ben.chatanon.repository.ModelRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// 模型组路由：同一模型组（models.modelGroup）的多个部署之间分摊负载，
+// 每轮按 首字节延迟 EWMA ×（在途数 + 1）×（1 + 错误率惩罚）估算成本，按成本倒数加权随机挑选成员，
+// 慢的、出错多的部署分到的请求少但不会完全断流（样本能继续更新）；熔断打开的成员不参与挑选
+// 延迟 / 错误 / 在途由 ModelCallService 在每次实际调用时上报
+@Service
+public class ModelRouter {
+    @Autowired
+    private ModelRepository modelRepository;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<Integer, MemberStats> stats = new ConcurrentHashMap<>();
+
+    private record Group(List<Models> members, long loadedAt) {
+    }
+
+    // 会话绑定的模型属于某个组时在组内挑选本轮使用的成员，否则原样返回
+    public Models route(Models bound) {
+        return pick(bound, false);
+    }
+
+    // 同组内除 model 之外的另一个成员（对冲请求使用），没有可用的其它成员时返回 model 本身
+    public Models alternate(Models model) {
+        return pick(model, true);
+    }
+
+    private Models pick(Models bound, boolean excludeBound) {
+        ChatProperties.Routing config = chatProperties.getRouting();
+        String group = bound.getModelGroup();
+        if (!config.isEnabled() || group == null || group.isBlank()) {
+            return bound;
+        }
+        List<Models> candidates = new ArrayList<>();
+        for (Models member : members(group)) {
+            if (!circuitBreakerRegistry.isOpen(member)
+                    && !(excludeBound && member.getModelId() == bound.getModelId())) {
+                candidates.add(member);
+            }
+        }
+        // 组内全部熔断时仍走绑定的模型，由熔断器快速失败
+        if (candidates.isEmpty()) {
+            return bound;
+        }
+        Models chosen = candidates.get(0);
+        if (candidates.size() > 1) {
+            double[] weights = new double[candidates.size()];
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = 1.0 / stats(candidates.get(i)).cost(config);
+                total += weights[i];
+            }
+            double r = ThreadLocalRandom.current().nextDouble(total);
+            for (int i = 0; i < weights.length; i++) {
+                r -= weights[i];
+                if (r < 0) {
+                    chosen = candidates.get(i);
+                    break;
+                }
+            }
+        }
+        meterRegistry.counter("chat.routing.selected", "group", group, "member", chosen.getModelName()).increment();
+        return chosen;
+    }
+
+    // 一次实际调用开始 / 结束（ModelCallService 调用）
+    public void onStart(Models model) {
+        stats(model).adjustInflight(1);
+    }
+
+    public void onEnd(Models model) {
+        stats(model).adjustInflight(-1);
+    }
+
+    // 首字节延迟样本（成功收到响应）
+    public void onSuccess(Models model, long latencyNanos) {
+        stats(model).sample(TimeUnit.NANOSECONDS.toMillis(latencyNanos), false, chatProperties.getRouting());
+    }
+
+    // 连接失败、超时、429 / 5xx
+    public void onFailure(Models model) {
+        stats(model).sample(-1, true, chatProperties.getRouting());
+    }
+
+    private List<Models> members(String group) {
+        long now = System.currentTimeMillis();
+        Group cached = groups.get(group);
+        if (cached != null && now - cached.loadedAt() < chatProperties.getRouting().getRefreshMs()) {
+            return cached.members();
+        }
+        try {
+            List<Models> members = List.copyOf(modelRepository.findByModelGroup(group));
+            groups.put(group, new Group(members, now));
+            return members;
+        } catch (Exception e) {
+            // 数据库暂时不可用时沿用旧的成员列表
+            System.out.println("加载模型组失败 " + group + ": " + e.getMessage());
+            return cached != null ? cached.members() : List.of();
+        }
+    }
+
+    private MemberStats stats(Models model) {
+        return stats.computeIfAbsent(model.getModelId(), id -> new MemberStats(model));
+    }
+
+    // 单个成员的延迟 / 错误率 EWMA 与在途数
+    private final class MemberStats {
+        // 毫秒，0 表示还没有样本
+        private double latency;
+        private double errorRate;
+        private int inflight;
+
+        private MemberStats(Models model) {
+            String group = model.getModelGroup() == null ? "" : model.getModelGroup();
+            Gauge.builder("chat.routing.latency", this, MemberStats::currentLatency)
+                    .description("模型组成员首字节延迟的指数移动平均（毫秒）")
+                    .tag("group", group).tag("member", model.getModelName())
+                    .register(meterRegistry);
+            Gauge.builder("chat.routing.error.rate", this, MemberStats::currentErrorRate)
+                    .tag("group", group).tag("member", model.getModelName())
+                    .register(meterRegistry);
+        }
+
+        private synchronized void sample(long latencyMs, boolean failed, ChatProperties.Routing config) {
+            double alpha = config.getSmoothing();
+            errorRate = errorRate * (1 - alpha) + (failed ? alpha : 0);
+            if (latencyMs >= 0) {
+                latency = latency == 0 ? latencyMs : latency * (1 - alpha) + latencyMs * alpha;
+            }
+        }
+
+        private synchronized void adjustInflight(int delta) {
+            inflight = Math.max(0, inflight + delta);
+        }
+
+        private synchronized double cost(ChatProperties.Routing config) {
+            double base = latency > 0 ? latency : config.getInitialLatencyMs();
+            return Math.max(1, base) * (inflight + 1) * (1 + config.getErrorPenalty() * errorRate);
+        }
+
+        private synchronized double currentLatency() {
+            return latency;
+        }
+
+        private synchronized double currentErrorRate() {
+            return errorRate;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ben.chatanon.service;
+
+import ben.chatanon.entity.dto.RolePromptDto;
+import ben.chatanon.repository.RoleRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 角色提示词前缀缓存：按 roleId 缓存拼好的 system 消息，带版本号防止失效期间写回旧数据
+// 多节点部署时通过 Redis pub/sub 广播失效
+@Service
+public class RolePromptCache {
+    private static final String INVALIDATE_CHANNEL = "chat:role-prompt:invalidate";
+
+    @Autowired
+    private RoleRepository roleRepository;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisListenerContainer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // 本节点标识，忽略自己发出的失效广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Map<Integer, RolePrompts> cache = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+
+    // 角色的全部提示词；prefix 为 背景提示词 + 角色提示词，rolePrefix 只含角色提示词
+    public record RolePrompts(long version,
+                              List<Map<String, String>> prefix,
+                              List<Map<String, String>> rolePrefix,
+                              Integer live2dId,
+                              String live2dPrompt) {
+    }
+
+    @PostConstruct
+    public void init() {
+        hitCounter = Counter.builder("chat.role.prompt.cache")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        missCounter = Counter.builder("chat.role.prompt.cache")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("chat.role.prompt.cache.size", cache, Map::size)
+                .register(meterRegistry);
+
+        redisListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int split = body.lastIndexOf(':');
+            if (split <= 0 || nodeId.equals(body.substring(0, split))) {
+                return;
+            }
+            try {
+                invalidateLocal(Integer.parseInt(body.substring(split + 1)));
+            } catch (NumberFormatException ignored) {
+            }
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    // 角色不存在时返回 null
+    public RolePrompts get(int roleId) {
+        RolePrompts cached = cache.get(roleId);
+        if (cached != null) {
+            hitCounter.increment();
+            return cached;
+        }
+        missCounter.increment();
+
+        // 先记下版本号再查库，若查库期间发生失效则不写回
+        long version = versionOf(roleId).get();
+        RolePromptDto dto = roleRepository.findRolePrompts(roleId);
+        if (dto == null) {
+            return null;
+        }
+        RolePrompts loaded = build(version, dto);
+        cache.compute(roleId, (id, current) ->
+                versionOf(id).get() == version ? loaded : current);
+        return loaded;
+    }
+
+    // 角色新建 / 修改后调用：本地失效并广播到其它节点
+    public void invalidate(int roleId) {
+        invalidateLocal(roleId);
+        try {
+            redisTemplate.convertAndSend(INVALIDATE_CHANNEL, nodeId + ":" + roleId);
+        } catch (Exception e) {
+            System.out.println("角色提示词缓存失效广播失败 roleId=" + roleId + ": " + e.getMessage());
+        }
+    }
+
+    private void invalidateLocal(int roleId) {
+        versionOf(roleId).incrementAndGet();
+        cache.remove(roleId);
+    }
+
+    private AtomicLong versionOf(int roleId) {
+        return versions.computeIfAbsent(roleId, id -> new AtomicLong());
+    }
+
+    private RolePrompts build(long version, RolePromptDto dto) {
+        List<Map<String, String>> prefix = new ArrayList<>();
+        // 背景提示词在前，角色提示词在后
+        for (String backgroundPrompt : parsePrompts(dto.getBackgroundPrompts())) {
+            prefix.add(Map.of(
+                    "role", "system",
+                    "content", backgroundPrompt
+            ));
+        }
+
+        List<Map<String, String>> rolePrefix = new ArrayList<>();
+        String rolePrompt = dto.getRolePrompt();
+        if (rolePrompt != null && !rolePrompt.isEmpty()) {
+            rolePrefix.add(Map.of(
+                    "role", "system",
+                    "content", rolePrompt
+            ));
+        }
+        prefix.addAll(rolePrefix);
+
+        return new RolePrompts(
+                version,
+                List.copyOf(prefix),
+                List.copyOf(rolePrefix),
+                dto.getLive2dId(),
+                dto.getLive2dPrompt()
+        );
+    }
+
+    private List<String> parsePrompts(String json) {
+        if (json == null || json.isEmpty()) {
+            return List.of();
+        }
+        try {
+            List<String> prompts = mapper.readValue(json, new TypeReference<List<String>>() {});
+            return prompts.stream().filter(Objects::nonNull).toList();
+        } catch (Exception e) {
+            return List.of();
+        }
+    }
+}
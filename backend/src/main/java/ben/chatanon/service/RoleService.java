@@ -36,6 +36,9 @@ public class RoleService {
     @Autowired
     private role_categoryRepository role_categoryRepository;
 
+    @Autowired
+    private RolePromptCache rolePromptCache;
+
     public List<RoleListElementVO> getRecommendedList() {
         List<Roles> recommendedList = roleRepository.findRecommendedList(3);
         return recommendedList.stream()
@@ -193,6 +196,8 @@ public class RoleService {
         for(String tag : dto.getTags())
             rc.setRoleCategory(roleCategoriesRepository.findByRoleTagName(tag));
         role_categoryRepository.save(rc);
+        // 角色提示词 / 背景标签变更，失效提示词缓存（含其它节点）
+        rolePromptCache.invalidate(role.getRoleId());
 
         vo.setRoleId(roleRepository.findByRoleName(dto.getRoleName()).getRoleId());
         vo.setRoleName(dto.getRoleName());
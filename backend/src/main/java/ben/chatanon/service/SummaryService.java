@@ -0,0 +1,270 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Messages;
+import ben.chatanon.entity.entity_chat.Models;
+import ben.chatanon.entity.entity_chat.SessionSummary;
+import ben.chatanon.repository.MessageRepository;
+import ben.chatanon.repository.SessionSummaryRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 会话滚动摘要：把滑出上下文窗口的旧消息增量折叠进摘要，后台执行，不占用 SSE 主流程
+// 摘要与热历史一起缓存在 Redis，每轮读取不访问 MySQL
+@Service
+public class SummaryService {
+    private static final String KEY_PREFIX = "chat:summary:";
+    // 缓存“该会话还没有摘要”，避免每轮回源
+    private static final String NONE = "";
+
+    private static final String SUMMARY_PROMPT = """
+            你是对话摘要助手。请把【已有摘要】与【新增对话】合并成一份新的摘要，
+            保留人物关系、关键事件、用户偏好与尚未结束的话题，使用第三人称简洁叙述，
+            不要编造内容，只输出摘要正文。
+            """;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private SessionSummaryRepository sessionSummaryRepository;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ThreadPoolTaskExecutor chatSummaryExecutor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TokenCounter tokenCounter;
+
+    @Autowired
+    private ModelCallService modelCallService;
+
+    @Autowired
+    private ContextWindowService contextWindowService;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // 正在摘要中的会话，避免同一会话并发摘要
+    private final Set<Integer> running = ConcurrentHashMap.newKeySet();
+
+    // 缓存中的摘要
+    private record CachedSummary(String summary, int lastMessageId, int tokens) {
+    }
+
+    // 获取会话当前摘要（可能为 null）：先读 Redis，未命中回源 MySQL 并回填
+    public SessionSummary getSummary(int sessionId) {
+        if (!chatProperties.getSummary().isEnabled()) {
+            return null;
+        }
+        try {
+            String json = redisTemplate.opsForValue().get(key(sessionId));
+            if (json != null) {
+                if (NONE.equals(json)) {
+                    return null;
+                }
+                CachedSummary cached = mapper.readValue(json, CachedSummary.class);
+                SessionSummary summary = new SessionSummary();
+                summary.setSessionId(sessionId);
+                summary.setSummary(cached.summary());
+                summary.setLastMessageId(cached.lastMessageId());
+                summary.setTokens(cached.tokens());
+                return summary;
+            }
+        } catch (Exception ignored) {
+            // 缓存不可用时回源
+        }
+        SessionSummary summary = sessionSummaryRepository.findBySessionId(sessionId);
+        cache(sessionId, summary);
+        return summary;
+    }
+
+    // 每轮回答入库后调用：只做提交，真正的摘要在后台线程完成
+    public void scheduleIfNeeded(int sessionId, Models model) {
+        if (!chatProperties.getSummary().isEnabled() || !running.add(sessionId)) {
+            return;
+        }
+        try {
+            chatSummaryExecutor.execute(() -> {
+                try {
+                    summarize(sessionId, model);
+                } catch (Exception e) {
+                    System.out.println("会话摘要失败 sessionId=" + sessionId + ": " + e.getMessage());
+                } finally {
+                    running.remove(sessionId);
+                }
+            });
+        } catch (Exception e) {
+            // 摘要线程池已满：跳过本次，下一轮回答入库后再触发
+            running.remove(sessionId);
+            meterRegistry.counter("chat.summary.skipped").increment();
+        }
+    }
+
+    // 清空会话时同步删除摘要
+    public void clear(int sessionId) {
+        sessionSummaryRepository.deleteById(sessionId);
+        try {
+            redisTemplate.delete(key(sessionId));
+        } catch (Exception ignored) {
+        }
+    }
+
+    // 积压较多的老会话分多次折叠，每次不超过 maxFoldsPerRun
+    private void summarize(int sessionId, Models model) throws Exception {
+        for (int i = 0; i < chatProperties.getSummary().getMaxFoldsPerRun(); i++) {
+            if (!fold(sessionId, model)) {
+                return;
+            }
+        }
+    }
+
+    // 折叠一批最旧的未摘要消息；不需要折叠时返回 false
+    private boolean fold(int sessionId, Models model) throws Exception {
+        ChatProperties.Summary config = chatProperties.getSummary();
+        SessionSummary summary = sessionSummaryRepository.findBySessionId(sessionId);
+        int lastMessageId = summary == null ? 0 : summary.getLastMessageId();
+        int summaryTokens = summary == null ? 0 : summary.getTokens();
+        int promptBudget = contextWindowService.promptBudget(model);
+
+        // 从最新往前，保留区内放得进上下文预算的消息以原文发送；
+        // 放不下的会被 ContextWindowService 丢弃，即使未满 keepRecentMessages 也要折叠
+        int pending = messageRepository.countBySessionIdAfter(sessionId, lastMessageId);
+        int recentBudget = promptBudget - summaryTokens - config.getMaxTokens() - config.getPromptReserveTokens();
+        int keep = 0;
+        for (Messages m : messageRepository.findRecentBySessionId(sessionId, lastMessageId, config.getKeepRecentMessages())) {
+            recentBudget -= tokensOf(m, model) + TokenCounter.MESSAGE_OVERHEAD;
+            if (recentBudget < 0) {
+                break;
+            }
+            keep++;
+        }
+        int foldCount = pending - keep;
+        boolean overflow = keep < Math.min(pending, config.getKeepRecentMessages());
+        // 保留区之外累计满 everyTurns 轮才折叠一次，避免每轮都调用模型；历史超出上下文窗口时立即折叠
+        if (foldCount <= 0 || (!overflow && foldCount < config.getEveryTurns() * 2)) {
+            return false;
+        }
+
+        // 单次折叠按 token 截断，保证摘要请求本身放得进模型上下文，剩余部分由下一次折叠继续
+        int foldBudget = Math.min(config.getFoldMaxTokens(), promptBudget - summaryTokens - config.getMaxTokens());
+        List<Messages> candidates = messageRepository.findOldestBySessionIdAfter(sessionId, lastMessageId,
+                Math.min(foldCount, config.getFoldMaxMessages()));
+        if (candidates.isEmpty() || foldBudget <= 0) {
+            return false;
+        }
+
+        StringBuilder dialogue = new StringBuilder();
+        dialogue.append("【已有摘要】\n")
+                .append(summary == null ? "（无）" : summary.getSummary())
+                .append("\n\n【新增对话】\n");
+        int used = 0;
+        Messages last = null;
+        for (Messages m : candidates) {
+            int tokens = tokensOf(m, model);
+            String text = m.getContent();
+            if (used + tokens > foldBudget) {
+                if (last != null) {
+                    break;
+                }
+                // 单条消息就超出预算时按比例截断后折叠，否则这条消息之后永远无法摘要
+                text = text.substring(0, (int) ((long) text.length() * foldBudget / Math.max(1, tokens)));
+            }
+            used += tokens;
+            last = m;
+            dialogue.append(m.getRole().name()).append(": ").append(text).append('\n');
+        }
+
+        String content = requestSummary(model, dialogue.toString());
+        if (content == null || content.isEmpty()) {
+            return false;
+        }
+
+        if (summary == null) {
+            summary = new SessionSummary();
+            summary.setSessionId(sessionId);
+        }
+        summary.setSummary(content);
+        summary.setLastMessageId(last.getMessageId());
+        summary.setTokens(tokenCounter.count(content, model.getModelVersion()));
+        summary.setUpdatedAt(LocalDateTime.now());
+        // @Version 乐观锁保证多节点下不会互相覆盖
+        cache(sessionId, sessionSummaryRepository.save(summary));
+        meterRegistry.counter("chat.summary.folds", "overflow", String.valueOf(overflow)).increment();
+        return true;
+    }
+
+    // 优先使用入库时记录的 tokens，旧数据（为 0）再现场计算
+    private int tokensOf(Messages m, Models model) {
+        return m.getTokens() > 0 ? m.getTokens() : tokenCounter.count(m.getContent(), model.getModelVersion());
+    }
+
+    private void cache(int sessionId, SessionSummary summary) {
+        try {
+            String json = summary == null ? NONE : mapper.writeValueAsString(
+                    new CachedSummary(summary.getSummary(), summary.getLastMessageId(), summary.getTokens()));
+            redisTemplate.opsForValue().set(key(sessionId), json,
+                    Duration.ofMinutes(chatProperties.getHistoryCache().getTtlMinutes()));
+        } catch (Exception ignored) {
+        }
+    }
+
+    private String key(int sessionId) {
+        return KEY_PREFIX + sessionId;
+    }
+
+    private String requestSummary(Models model, String dialogue) throws Exception {
+        Map<String, Object> req = new HashMap<>();
+        req.put("model", model.getModelVersion());
+        req.put("messages", List.of(
+                Map.of("role", "system", "content", SUMMARY_PROMPT),
+                Map.of("role", "user", "content", dialogue)
+        ));
+        req.put("max_tokens", chatProperties.getSummary().getMaxTokens());
+        req.put("stream", false);
+        req.put("temperature", 0);
+
+        Request request = new Request.Builder()
+                .url(model.getApiURL())
+                .addHeader("Authorization", "Bearer " + model.getApiKey())
+                .post(RequestBody.create(
+                        mapper.writeValueAsString(req),
+                        MediaType.parse("application/json")
+                ))
+                .build();
+
+        // 按 background 通道排队拿到供应商并发名额；模型熔断打开时立即失败，不再等待超时
+        try (Response response = modelCallService
+                .blocking(model, request, UpstreamScheduler.Lane.BACKGROUND).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                return null;
+            }
+            return mapper.readTree(response.body().string())
+                    .path("choices").path(0)
+                    .path("message")
+                    .path("content")
+                    .asText()
+                    .trim();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.util.BpeTokenizer;
+import ben.chatanon.util.HeuristicTokenizer;
+import ben.chatanon.util.Tokenizer;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 本地 token 计数（不走网络），按 modelVersion 选择分词器，用于上下文窗口裁剪和消息 tokens 入库
+// 分词器可插拔：容器中的 Tokenizer Bean 按 name() 注册，覆盖同名的内置编码
+@Component
+public class TokenCounter {
+    // 每条消息额外的格式开销（role、分隔符等）
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired(required = false)
+    private List<Tokenizer> customTokenizers = List.of();
+
+    // 编码名 -> 分词器（jtokkit 的词表按需懒加载）
+    private final Map<String, Tokenizer> tokenizers = new ConcurrentHashMap<>();
+    private final EncodingRegistry encodingRegistry = Encodings.newLazyEncodingRegistry();
+    // 静态提示词（角色、背景、Live2D 提示词）的计数缓存，key 为 编码名 + 文本
+    private final Map<String, Integer> staticCounts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        tokenizers.put(HeuristicTokenizer.NAME, new HeuristicTokenizer());
+        for (Tokenizer t : customTokenizers) {
+            tokenizers.put(t.name(), t);
+        }
+    }
+
+    // 按默认分词器计数
+    public int count(String text) {
+        return tokenizer(null).count(text);
+    }
+
+    // 按模型对应的分词器计数
+    public int count(String text, String modelVersion) {
+        return tokenizer(modelVersion).count(text);
+    }
+
+    // 不变的提示词计数结果缓存起来，每轮不再重复分词
+    public int countStatic(String text, String modelVersion) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Tokenizer tokenizer = tokenizer(modelVersion);
+        String key = tokenizer.name() + '\u0000' + text;
+        Integer cached = staticCounts.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int tokens = tokenizer.count(text);
+        if (staticCounts.size() >= chatProperties.getTokens().getStaticCacheSize()) {
+            // 超出上限直接清空，提示词数量有限，很快会重新填满
+            staticCounts.clear();
+        }
+        staticCounts.put(key, tokens);
+        return tokens;
+    }
+
+    // modelVersion 对应的分词器，未配置时使用默认编码，编码名不认识时退回估算
+    public Tokenizer tokenizer(String modelVersion) {
+        ChatProperties.Tokens config = chatProperties.getTokens();
+        String encoding = modelVersion == null
+                ? config.getDefaultEncoding()
+                : config.getEncodings().getOrDefault(modelVersion, config.getDefaultEncoding());
+        return tokenizers.computeIfAbsent(encoding, name -> encodingRegistry.getEncoding(name)
+                .<Tokenizer>map(BpeTokenizer::new)
+                .orElseGet(() -> {
+                    System.out.println("未知的分词编码 " + name + "，改用估算");
+                    return tokenizers.get(HeuristicTokenizer.NAME);
+                }));
+    }
+}
@@ -0,0 +1,80 @@
+package ben.chatanon.service;
+
+import ben.chatanon.entity.dto.TurnContextDto;
+import ben.chatanon.entity.entity_chat.Models;
+import ben.chatanon.entity.entity_chat.Sessions;
+import ben.chatanon.repository.SessionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+// 单轮聊天上下文加载：一次数据库往返取出会话与模型，提示词走角色提示词缓存，模型组成员走 ModelRouter 缓存
+@Service
+public class TurnContextService {
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private RolePromptCache rolePromptCache;
+
+    @Autowired
+    private ModelRouter modelRouter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 单轮上下文；session 为引用代理，只用于写入外键，不会触发查询
+    // userTier 为用户类型（user / admin），用于准入控制分级
+    // model 为本轮实际使用的模型（会话绑定模型组时是组内路由到的成员）
+    public record TurnContext(Sessions session,
+                              Models model,
+                              int userId,
+                              String userTier,
+                              int roleId,
+                              RolePromptCache.RolePrompts prompts) {
+    }
+
+    // 会话或角色不存在时返回 null
+    public TurnContext load(int sessionId) {
+        TurnContextDto dto = sessionRepository.findTurnContext(sessionId);
+        if (dto == null) {
+            return null;
+        }
+        RolePromptCache.RolePrompts prompts = rolePromptCache.get(dto.getRoleId());
+        if (prompts == null) {
+            return null;
+        }
+
+        Models model = new Models();
+        model.setModelId(dto.getModelId());
+        model.setModelName(dto.getModelName());
+        model.setModelVersion(dto.getModelVersion());
+        model.setApiURL(dto.getApiURL());
+        model.setApiKey(dto.getApiKey());
+        model.setMaxTokens(dto.getMaxTokens());
+        model.setTemperature(dto.getTemperature());
+        model.setModelGroup(dto.getModelGroup());
+
+        return new TurnContext(
+                sessionRepository.getReferenceById(sessionId),
+                // 会话绑定到模型组时，本轮使用组内路由到的成员
+                modelRouter.route(model),
+                dto.getUserId(),
+                dto.getUserType(),
+                dto.getRoleId(),
+                prompts
+        );
+    }
+
+    // 记录单轮在数据库（含缓存回源）上花费的时间
+    public void recordDbTime(String mode, long startNanos) {
+        Timer.builder("chat.turn.db.time")
+                .description("单轮聊天在调用模型前的数据库耗时")
+                .tag("mode", mode)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
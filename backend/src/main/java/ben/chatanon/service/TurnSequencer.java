@@ -0,0 +1,420 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 会话轮次顺序执行：同一会话同时只有一轮在读历史、调用模型、保存回答，避免并发发送导致上下文交错、重复
+// 本节点内用分段锁保护各会话的占用状态和排队队列（临界区很短，只判断 / 修改本会话的状态），
+// 多节点之间用 Redis 租约（chat:turn:{sessionId}）互斥，轮次进行中定期续期，取消上一轮通过 pub/sub 通知持有租约的节点
+// 排队不占用线程：begin 返回 CompletableFuture，上一轮结束（或租约可用）时完成，排队超时、轮询租约都在 chatTaskScheduler 上进行
+@Service
+public class TurnSequencer {
+    private static final String KEY_PREFIX = "chat:turn:";
+    private static final String CANCEL_CHANNEL = "chat:turn:cancel";
+    public static final String POLICY_QUEUE = "queue";
+    public static final String POLICY_REJECT = "reject";
+    public static final String POLICY_CANCEL_PREVIOUS = "cancel-previous";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisListenerContainer;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final DefaultRedisScript<Long> releaseScript = script("lua/turn_release.lua");
+    private final DefaultRedisScript<Long> renewScript = script("lua/turn_renew.lua");
+
+    // 本节点正在执行（或正在等待其它节点租约）的轮次
+    private final Map<Integer, Slot> active = new ConcurrentHashMap<>();
+    // 本节点排队等待的轮次，按到达顺序；队列只在对应分段锁内修改
+    private final Map<Integer, Deque<Waiter>> waiting = new ConcurrentHashMap<>();
+    private ReentrantLock[] locks;
+
+    // 会话正忙（reject 策略、排队超时或被更新的一轮取代）时抛出 / 作为 begin 的失败结果
+    public static class BusyException extends RuntimeException {
+        private final String reason;
+
+        public BusyException(String reason) {
+            super("当前会话上一条消息仍在回答中，请稍后再试（" + reason + "）");
+            this.reason = reason;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    // 一轮的占用，轮次结束时释放（可重复调用）
+    public final class Slot {
+        private final int sessionId;
+        private final String token = UUID.randomUUID().toString();
+        private final AtomicBoolean releasedFlag = new AtomicBoolean(false);
+        private volatile boolean leased;
+        private volatile ScheduledFuture<?> renewal;
+        private boolean cancelled;
+        private Runnable canceller;
+
+        private Slot(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        // 注册取消本轮的回调（cancel-previous 策略下被新一轮取消时调用）
+        public void onCancel(Runnable canceller) {
+            boolean runNow;
+            synchronized (this) {
+                this.canceller = canceller;
+                runNow = cancelled;
+            }
+            if (runNow) {
+                canceller.run();
+            }
+        }
+
+        private void cancel() {
+            Runnable callback;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                callback = canceller;
+            }
+            meterRegistry.counter("chat.turn.cancelled").increment();
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void release() {
+            if (this == NOOP || !releasedFlag.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> task = renewal;
+            if (task != null) {
+                task.cancel(false);
+            }
+            if (leased) {
+                try {
+                    redisTemplate.execute(releaseScript, List.of(KEY_PREFIX + sessionId), token);
+                } catch (Exception e) {
+                    // 归还失败由租约到期兜底
+                    System.out.println("归还会话租约失败 sessionId=" + sessionId + ": " + e.getMessage());
+                }
+            }
+            releaseLocal(this);
+        }
+    }
+
+    // 排队中的一轮
+    private final class Waiter {
+        private final Slot slot;
+        private final String policy;
+        private final long start = System.nanoTime();
+        private final long deadline;
+        private final CompletableFuture<Slot> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+        private boolean cancelSent;
+
+        private Waiter(int sessionId, ChatProperties.Turn config) {
+            this.slot = new Slot(sessionId);
+            this.policy = config.getPolicy();
+            this.deadline = start + TimeUnit.MILLISECONDS.toNanos(config.getQueueTimeoutMs());
+        }
+    }
+
+    private final Slot NOOP = new Slot(0);
+
+    @PostConstruct
+    public void init() {
+        int stripes = Math.max(1, chatProperties.getTurn().getStripes());
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        // 其它节点要求取消本节点持有租约的轮次
+        redisListenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                int sessionId = Integer.parseInt(new String(message.getBody(), StandardCharsets.UTF_8));
+                Slot slot = active.get(sessionId);
+                if (slot != null && slot.leased) {
+                    slot.cancel();
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }, new ChannelTopic(CANCEL_CHANNEL));
+    }
+
+    // 开始一轮：按策略排队 / 拒绝 / 取消上一轮，拿到占用（含 Redis 租约）后完成；
+    // 会话正忙时以 BusyException 失败。调用方取消返回的 future 即放弃排队
+    public CompletableFuture<Slot> begin(int sessionId) {
+        ChatProperties.Turn config = chatProperties.getTurn();
+        if (!config.isEnabled()) {
+            return CompletableFuture.completedFuture(NOOP);
+        }
+        Waiter waiter = new Waiter(sessionId, config);
+        Slot previous = null;
+        List<Waiter> superseded = List.of();
+        boolean queued = false;
+
+        ReentrantLock lock = lockOf(sessionId);
+        lock.lock();
+        try {
+            Slot current = active.putIfAbsent(sessionId, waiter.slot);
+            if (current != null) {
+                if (POLICY_REJECT.equals(waiter.policy)) {
+                    waiter.future.completeExceptionally(busy("rejected", waiter));
+                    return waiter.future;
+                }
+                Deque<Waiter> queue = waiting.computeIfAbsent(sessionId, k -> new ArrayDeque<>());
+                if (POLICY_CANCEL_PREVIOUS.equals(waiter.policy)) {
+                    // 取消正在进行的一轮，之前排队的也由本轮取代
+                    previous = current;
+                    superseded = new ArrayList<>(queue);
+                    queue.clear();
+                }
+                queue.addLast(waiter);
+                waiter.timeout = chatTaskScheduler.schedule(() -> expire(waiter),
+                        Instant.now().plusMillis(config.getQueueTimeoutMs()));
+                queued = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // 取消回调可能有网络 IO，锁外交给定时线程池执行（不会退回到调用线程上执行）
+        if (previous != null) {
+            chatTaskScheduler.execute(previous::cancel);
+        }
+        for (Waiter w : superseded) {
+            w.timeout.cancel(false);
+            w.future.completeExceptionally(busy("cancelled", w));
+        }
+        waiter.future.whenComplete((slot, e) -> {
+            if (e instanceof CancellationException) {
+                abandon(waiter);
+            }
+        });
+        if (!queued) {
+            // 本节点已占到会话，再占 Redis 租约（同一会话在其它节点上的轮次）
+            acquireLease(waiter);
+        }
+        return waiter.future;
+    }
+
+    // 取出 begin 的结果（会话正忙时抛出 BusyException）；future 未完成时阻塞当前线程
+    public static Slot await(CompletableFuture<Slot> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // 排队超时：仍在队列中时移出并失败
+    private void expire(Waiter waiter) {
+        if (removeWaiting(waiter)) {
+            waiter.future.completeExceptionally(busy("timeout", waiter));
+        }
+    }
+
+    // 调用方放弃排队（客户端断开）：仍在队列中时移出
+    private void abandon(Waiter waiter) {
+        if (removeWaiting(waiter)) {
+            waiter.timeout.cancel(false);
+            record("abandoned", waiter.policy, waiter.start);
+        }
+    }
+
+    private boolean removeWaiting(Waiter waiter) {
+        int sessionId = waiter.slot.sessionId;
+        ReentrantLock lock = lockOf(sessionId);
+        lock.lock();
+        try {
+            Deque<Waiter> queue = waiting.get(sessionId);
+            if (queue == null || !queue.remove(waiter)) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                waiting.remove(sessionId);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 尝试占 Redis 租约，被其它节点占用时按轮询间隔在 chatTaskScheduler 上重试，不阻塞线程
+    private void acquireLease(Waiter waiter) {
+        ChatProperties.Turn config = chatProperties.getTurn();
+        Slot slot = waiter.slot;
+        String key = KEY_PREFIX + slot.sessionId;
+        try {
+            if (Boolean.TRUE.equals(redisTemplate.opsForValue()
+                    .setIfAbsent(key, slot.token, Duration.ofMillis(config.getLeaseMs())))) {
+                slot.leased = true;
+                // 轮次进行中每 1/3 租约时间续期一次，租约只需覆盖节点宕机后的兜底时间
+                Duration period = Duration.ofMillis(Math.max(1, config.getLeaseMs() / 3));
+                slot.renewal = chatTaskScheduler.scheduleAtFixedRate(() -> renew(slot),
+                        Instant.now().plus(period), period);
+                grant(waiter);
+                return;
+            }
+            if (POLICY_REJECT.equals(waiter.policy)) {
+                failLeased(waiter, "rejected");
+                return;
+            }
+            // 排队期间被更新的一轮取消，或调用方已放弃
+            if (slot.isCancelled() || waiter.future.isDone()) {
+                failLeased(waiter, "cancelled");
+                return;
+            }
+            if (POLICY_CANCEL_PREVIOUS.equals(waiter.policy) && !waiter.cancelSent) {
+                redisTemplate.convertAndSend(CANCEL_CHANNEL, String.valueOf(slot.sessionId));
+                waiter.cancelSent = true;
+            }
+            if (System.nanoTime() >= waiter.deadline) {
+                failLeased(waiter, "timeout");
+                return;
+            }
+            chatTaskScheduler.schedule(() -> acquireLease(waiter),
+                    Instant.now().plusMillis(config.getPollIntervalMs()));
+        } catch (Exception e) {
+            // Redis 不可用时只保证本节点内的顺序
+            System.out.println("获取会话租约失败 sessionId=" + slot.sessionId + ": " + e.getMessage());
+            grant(waiter);
+        }
+    }
+
+    private void renew(Slot slot) {
+        if (slot.releasedFlag.get()) {
+            return;
+        }
+        try {
+            Long renewed = redisTemplate.execute(renewScript, List.of(KEY_PREFIX + slot.sessionId),
+                    slot.token, String.valueOf(chatProperties.getTurn().getLeaseMs()));
+            if (renewed != null && renewed == 0 && !slot.releasedFlag.get()) {
+                // 租约已过期并可能被其它节点占用，不再续期
+                meterRegistry.counter("chat.turn.lease.lost").increment();
+                System.out.println("会话租约已丢失 sessionId=" + slot.sessionId);
+                slot.renewal.cancel(false);
+            }
+        } catch (Exception e) {
+            // 下次续期重试，多次失败由租约到期兜底
+            System.out.println("续期会话租约失败 sessionId=" + slot.sessionId + ": " + e.getMessage());
+        }
+    }
+
+    // 拿到占用；调用方已放弃时直接归还
+    private void grant(Waiter waiter) {
+        record("acquired", waiter.policy, waiter.start);
+        if (!waiter.future.complete(waiter.slot)) {
+            waiter.slot.release();
+        }
+    }
+
+    // 已占本节点会话、未占到租约时失败：交给下一个排队的轮次
+    private void failLeased(Waiter waiter, String result) {
+        releaseLocal(waiter.slot);
+        waiter.future.completeExceptionally(busy(result, waiter));
+    }
+
+    // 归还本节点的占用，交给队首仍在等待的轮次（在 chatTaskScheduler 上占租约，不占用归还方线程）
+    private void releaseLocal(Slot slot) {
+        Waiter next = null;
+        ReentrantLock lock = lockOf(slot.sessionId);
+        lock.lock();
+        try {
+            if (!active.remove(slot.sessionId, slot)) {
+                return;
+            }
+            Deque<Waiter> queue = waiting.get(slot.sessionId);
+            if (queue != null) {
+                next = queue.pollFirst();
+                if (queue.isEmpty()) {
+                    waiting.remove(slot.sessionId);
+                }
+            }
+            if (next != null) {
+                active.put(slot.sessionId, next.slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (next != null) {
+            next.timeout.cancel(false);
+            Waiter handoff = next;
+            chatTaskScheduler.execute(() -> acquireLease(handoff));
+        }
+    }
+
+    private ReentrantLock lockOf(int sessionId) {
+        return locks[Math.floorMod(Integer.hashCode(sessionId), locks.length)];
+    }
+
+    private BusyException busy(String result, Waiter waiter) {
+        record(result, waiter.policy, waiter.start);
+        return new BusyException(result);
+    }
+
+    private void record(String result, String policy, long startNanos) {
+        Timer.builder("chat.turn.queue.wait")
+                .description("同一会话上一轮结束前的等待时间")
+                .tag("result", result)
+                .tag("policy", policy)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static DefaultRedisScript<Long> script(String path) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
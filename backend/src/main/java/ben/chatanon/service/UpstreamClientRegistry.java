@@ -0,0 +1,174 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import ben.chatanon.repository.ModelRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import okhttp3.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// 上游模型 HTTP 客户端注册表：按 Models.apiURL 的 scheme://host:port 区分供应商，
+// 每个供应商独立的连接池、调度器并发上限和超时配置
+@Service
+public class UpstreamClientRegistry {
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ModelRepository modelRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, ProviderClients> clients = new ConcurrentHashMap<>();
+    // 响应式客户端（reactor-netty），供 Flux 流式接口使用
+    private final Map<String, ReactiveClient> reactiveClients = new ConcurrentHashMap<>();
+
+    // 同一供应商的流式 / 非流式客户端共用连接池与调度器，只是超时不同
+    private record ProviderClients(OkHttpClient streaming, OkHttpClient blocking) {
+    }
+
+    // 流式请求客户端：读超时即流空闲超时，不设整体超时
+    public OkHttpClient streaming(Models model) {
+        return clientsOf(model.getApiURL()).streaming();
+    }
+
+    // 非流式请求客户端：带整体调用超时
+    public OkHttpClient blocking(Models model) {
+        return clientsOf(model.getApiURL()).blocking();
+    }
+
+    private record ReactiveClient(WebClient webClient, ConnectionProvider connectionProvider) {
+    }
+
+    // 非阻塞流式客户端：连接数上限、空闲保活、连接 / 空闲超时沿用同一份供应商配置
+    public WebClient reactive(Models model) {
+        return reactiveClients.computeIfAbsent(providerOf(model.getApiURL()), this::createReactive).webClient();
+    }
+
+    // 启动后预热：对每个供应商先建立连接（TCP + TLS），首个用户请求不再付握手开销
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarm() {
+        if (!chatProperties.getUpstream().isPrewarm()) {
+            return;
+        }
+        try {
+            for (Models model : modelRepository.findAll()) {
+                String provider = providerOf(model.getApiURL());
+                Request request = new Request.Builder().url(provider + "/").head().build();
+                clientsOf(model.getApiURL()).blocking().newCall(request).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        System.out.println("上游连接预热失败 " + provider + ": " + e.getMessage());
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        response.close();
+                    }
+                });
+            }
+        } catch (Exception e) {
+            System.out.println("上游连接预热失败: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ProviderClients c : clients.values()) {
+            c.blocking().dispatcher().executorService().shutdown();
+            c.blocking().connectionPool().evictAll();
+        }
+        for (ReactiveClient c : reactiveClients.values()) {
+            c.connectionProvider().dispose();
+        }
+    }
+
+    private ProviderClients clientsOf(String apiURL) {
+        return clients.computeIfAbsent(providerOf(apiURL), this::create);
+    }
+
+    private ProviderClients create(String provider) {
+        ChatProperties.Upstream upstream = chatProperties.getUpstream();
+        ChatProperties.Provider config = upstream.getProviders().getOrDefault(provider, upstream.getDefaults());
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+        ConnectionPool pool = new ConnectionPool(
+                config.getMaxIdleConnections(), config.getKeepAliveSeconds(), TimeUnit.SECONDS);
+
+        OkHttpClient streaming = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(pool)
+                .protocols(config.isHttp2()
+                        ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : List.of(Protocol.HTTP_1_1))
+                .connectTimeout(config.getConnectTimeoutMs(), TimeUnit.MILLISECONDS)
+                .writeTimeout(config.getConnectTimeoutMs(), TimeUnit.MILLISECONDS)
+                .readTimeout(config.getStreamIdleTimeoutMs(), TimeUnit.MILLISECONDS)
+                .build();
+        OkHttpClient blocking = streaming.newBuilder()
+                .readTimeout(config.getReadTimeoutMs(), TimeUnit.MILLISECONDS)
+                .callTimeout(config.getCallTimeoutMs(), TimeUnit.MILLISECONDS)
+                .build();
+
+        Gauge.builder("chat.upstream.pool.connections", pool, ConnectionPool::connectionCount)
+                .tag("provider", provider).register(meterRegistry);
+        Gauge.builder("chat.upstream.pool.idle", pool, ConnectionPool::idleConnectionCount)
+                .tag("provider", provider).register(meterRegistry);
+        Gauge.builder("chat.upstream.dispatcher.running", dispatcher, Dispatcher::runningCallsCount)
+                .tag("provider", provider).register(meterRegistry);
+        Gauge.builder("chat.upstream.dispatcher.queued", dispatcher, Dispatcher::queuedCallsCount)
+                .tag("provider", provider).register(meterRegistry);
+
+        return new ProviderClients(streaming, blocking);
+    }
+
+    private ReactiveClient createReactive(String provider) {
+        ChatProperties.Upstream upstream = chatProperties.getUpstream();
+        ChatProperties.Provider config = upstream.getProviders().getOrDefault(provider, upstream.getDefaults());
+
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("chat-upstream-" + provider)
+                .maxConnections(config.getMaxRequestsPerHost())
+                .pendingAcquireMaxCount(config.getMaxRequests())
+                .maxIdleTime(Duration.ofSeconds(config.getKeepAliveSeconds()))
+                .metrics(true)
+                .build();
+        // 明文 http 不支持 h2 协商，这里统一用 HTTP/1.1；单连接上只有一个流，连接数按 maxRequestsPerHost 放开
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) config.getConnectTimeoutMs())
+                // 两次读之间的最长间隔，即流空闲超时
+                .responseTimeout(Duration.ofMillis(config.getStreamIdleTimeoutMs()));
+        WebClient webClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+        return new ReactiveClient(webClient, connectionProvider);
+    }
+
+    // 供应商标识：scheme://host:port
+    static String providerOf(String apiURL) {
+        HttpUrl url = HttpUrl.parse(apiURL);
+        if (url == null) {
+            return apiURL;
+        }
+        return url.scheme() + "://" + url.host() + ":" + url.port();
+    }
+}
@@ -0,0 +1,316 @@
+package ben.chatanon.service;
+
+import ben.chatanon.config.ChatProperties;
+import ben.chatanon.entity.entity_chat.Models;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 上游调用调度：同一供应商的所有调用（聊天回答、情感判断、摘要等后台任务）共用 maxRequestsPerHost 个并发名额，
+// 按调用类别分通道排队；名额占满时空出的名额按通道权重（平滑加权轮询）分配，后台任务让位于交互请求
+// 每个通道的队列有上限，排队超过截止时间的请求直接丢弃，不再发往供应商
+@Service
+public class UpstreamScheduler {
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ThreadPoolTaskScheduler chatTaskScheduler;
+
+    private final Map<String, ProviderQueue> queues = new ConcurrentHashMap<>();
+
+    // 调用类别
+    public enum Lane {
+        INTERACTIVE("interactive"),
+        EMOTION("emotion"),
+        BACKGROUND("background");
+
+        private final String name;
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    // 排队已满或超过截止时间时抛出
+    public static class DroppedException extends RuntimeException {
+        private final String reason;
+
+        public DroppedException(Lane lane, String reason) {
+            super("上游繁忙，请稍后再试（" + lane.getName() + ": " + reason + "）");
+            this.reason = reason;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    // 已占用的并发名额，调用结束时归还（可重复调用），可用于 try-with-resources
+    public interface Lease extends AutoCloseable {
+        void release();
+
+        @Override
+        default void close() {
+            release();
+        }
+    }
+
+    private static final Lease NOOP = () -> {
+    };
+
+    // 排队等待名额；名额到手时 future 完成，排队已满 / 超时时以 DroppedException 失败
+    // 在名额到手前取消 future 即退出排队
+    public CompletableFuture<Lease> submit(Models model, Lane lane) {
+        if (!chatProperties.getUpstream().getScheduler().isEnabled()) {
+            return CompletableFuture.completedFuture(NOOP);
+        }
+        String provider = UpstreamClientRegistry.providerOf(model.getApiURL());
+        return queues.computeIfAbsent(provider, ProviderQueue::new).submit(lane);
+    }
+
+    // 同步等待名额（非流式调用在工作线程上使用）
+    public Lease acquire(Models model, Lane lane) {
+        return acquire(submit(model, lane), lane);
+    }
+
+    // 同步等待已提交的排队；排队期间 future 被取消时以 DroppedException（canceled）退出
+    public Lease acquire(CompletableFuture<Lease> future, Lane lane) {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new DroppedException(lane, "canceled");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new DroppedException(lane, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new DroppedException(lane, "error");
+        }
+    }
+
+    // 异步调用：拿到名额后再 enqueue，回调结束（失败或响应处理完）时归还名额
+    // 返回排队的 future，调用被取消（客户端断开）时取消它即立即退出排队并回调 onFailure
+    public CompletableFuture<Lease> enqueue(Models model, Lane lane, Call call, Callback callback) {
+        CompletableFuture<Lease> future = submit(model, lane);
+        future.whenComplete((lease, e) -> {
+            if (e instanceof CancellationException) {
+                callback.onFailure(call, new IOException("Canceled", e));
+                return;
+            }
+            if (e != null) {
+                callback.onFailure(call, new IOException(e.getMessage(), e));
+                return;
+            }
+            if (call.isCanceled()) {
+                lease.release();
+                callback.onFailure(call, new IOException("Canceled"));
+                return;
+            }
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call c, IOException ex) {
+                    lease.release();
+                    callback.onFailure(c, ex);
+                }
+
+                @Override
+                public void onResponse(Call c, Response response) throws IOException {
+                    try {
+                        callback.onResponse(c, response);
+                    } finally {
+                        lease.release();
+                    }
+                }
+            });
+        });
+        return future;
+    }
+
+    private ChatProperties.SchedulerLane config(Lane lane) {
+        ChatProperties.SchedulerLane config = chatProperties.getUpstream().getScheduler().getLanes().get(lane.getName());
+        return config != null ? config : new ChatProperties.SchedulerLane();
+    }
+
+    private record Waiter(CompletableFuture<Lease> future, long enqueuedAt) {
+    }
+
+    private record Grant(Waiter waiter, Lease lease) {
+    }
+
+    // 单个供应商的并发名额与各通道队列
+    private final class ProviderQueue {
+        private final String provider;
+        private final int capacity;
+        private final Map<Lane, ArrayDeque<Waiter>> lanes = new EnumMap<>(Lane.class);
+        // 平滑加权轮询的当前权重
+        private final Map<Lane, Integer> current = new EnumMap<>(Lane.class);
+        private final Map<Lane, Timer> waitTimers = new EnumMap<>(Lane.class);
+        private int running;
+
+        private ProviderQueue(String provider) {
+            this.provider = provider;
+            ChatProperties.Upstream upstream = chatProperties.getUpstream();
+            this.capacity = Math.max(1,
+                    upstream.getProviders().getOrDefault(provider, upstream.getDefaults()).getMaxRequestsPerHost());
+            for (Lane lane : Lane.values()) {
+                ArrayDeque<Waiter> queue = new ArrayDeque<>();
+                lanes.put(lane, queue);
+                current.put(lane, 0);
+                Gauge.builder("chat.upstream.scheduler.queue", this, q -> q.depth(lane))
+                        .tag("provider", provider).tag("lane", lane.getName())
+                        .register(meterRegistry);
+                waitTimers.put(lane, Timer.builder("chat.upstream.scheduler.wait")
+                        .description("上游调用排队等待并发名额的时间")
+                        .tag("provider", provider).tag("lane", lane.getName())
+                        .publishPercentileHistogram()
+                        .register(meterRegistry));
+            }
+            Gauge.builder("chat.upstream.scheduler.running", this, q -> q.runningCount())
+                    .tag("provider", provider).register(meterRegistry);
+        }
+
+        private CompletableFuture<Lease> submit(Lane lane) {
+            ChatProperties.SchedulerLane config = config(lane);
+            CompletableFuture<Lease> future = new CompletableFuture<>();
+            Waiter waiter = new Waiter(future, System.nanoTime());
+            List<Grant> grants;
+            synchronized (this) {
+                ArrayDeque<Waiter> queue = lanes.get(lane);
+                if (running >= capacity && queue.size() >= config.getQueueCapacity()) {
+                    dropped(lane, "full");
+                    future.completeExceptionally(new DroppedException(lane, "full"));
+                    return future;
+                }
+                queue.addLast(waiter);
+                grants = dispatch();
+            }
+            complete(grants);
+            if (!future.isDone()) {
+                // 截止时间到仍未拿到名额则丢弃，不再发往供应商
+                ScheduledFuture<?> deadline = chatTaskScheduler.schedule(() -> {
+                    if (future.completeExceptionally(new DroppedException(lane, "deadline"))) {
+                        dropped(lane, "deadline");
+                    }
+                }, Instant.now().plusMillis(config.getMaxWaitMs()));
+                // 被丢弃或调用方取消（客户端断开）时立即移出队列
+                future.whenComplete((lease, e) -> {
+                    deadline.cancel(false);
+                    if (e != null) {
+                        synchronized (this) {
+                            lanes.get(lane).remove(waiter);
+                        }
+                    }
+                });
+            }
+            return future;
+        }
+
+        // 有空闲名额时按权重挑选通道出队，需在锁内调用；返回待完成的名额
+        private List<Grant> dispatch() {
+            List<Grant> grants = new ArrayList<>();
+            while (running < capacity) {
+                Lane lane = pick();
+                if (lane == null) {
+                    break;
+                }
+                Waiter waiter = lanes.get(lane).pollFirst();
+                if (waiter.future().isDone()) {
+                    continue;
+                }
+                running++;
+                waitTimers.get(lane).record(System.nanoTime() - waiter.enqueuedAt(), TimeUnit.NANOSECONDS);
+                AtomicBoolean released = new AtomicBoolean(false);
+                grants.add(new Grant(waiter, () -> {
+                    if (released.compareAndSet(false, true)) {
+                        release();
+                    }
+                }));
+            }
+            return grants;
+        }
+
+        // 平滑加权轮询：每个非空通道加上自己的权重，选当前权重最大的，再减去总权重
+        private Lane pick() {
+            Lane best = null;
+            int total = 0;
+            for (Lane lane : Lane.values()) {
+                if (lanes.get(lane).isEmpty()) {
+                    continue;
+                }
+                int weight = Math.max(1, config(lane).getWeight());
+                total += weight;
+                current.merge(lane, weight, Integer::sum);
+                if (best == null || current.get(lane) > current.get(best)) {
+                    best = lane;
+                }
+            }
+            if (best != null) {
+                current.merge(best, -total, Integer::sum);
+            }
+            return best;
+        }
+
+        private void release() {
+            List<Grant> grants;
+            synchronized (this) {
+                running--;
+                grants = dispatch();
+            }
+            complete(grants);
+        }
+
+        // 在锁外完成 future，避免回调在锁内执行；已被取消 / 超时的名额立即归还
+        private void complete(List<Grant> grants) {
+            for (Grant grant : grants) {
+                if (!grant.waiter().future().complete(grant.lease())) {
+                    grant.lease().release();
+                }
+            }
+        }
+
+        private synchronized int depth(Lane lane) {
+            return lanes.get(lane).size();
+        }
+
+        private synchronized int runningCount() {
+            return running;
+        }
+
+        private void dropped(Lane lane, String reason) {
+            meterRegistry.counter("chat.upstream.scheduler.dropped",
+                    "provider", provider, "lane", lane.getName(), "reason", reason).increment();
+        }
+    }
+}
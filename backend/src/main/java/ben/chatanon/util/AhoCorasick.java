@@ -0,0 +1,109 @@
+package ben.chatanon.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+// 多模式串匹配自动机（Aho-Corasick），构建后只读，可多线程共享
+// 一次扫描文本即可找出所有关键词（含 emoji）的出现位置，耗时与文本长度线性相关，与关键词数量无关
+// 匹配忽略大小写
+public class AhoCorasick<V> {
+    private final Node<V> root;
+
+    private AhoCorasick(Node<V> root) {
+        this.root = root;
+    }
+
+    private static final class Node<V> {
+        private final Map<Character, Node<V>> next = new HashMap<>();
+        private Node<V> fail;
+        // 以该节点结尾的所有模式（含 fail 链上的后缀模式）
+        private List<V> outputs = List.of();
+    }
+
+    @FunctionalInterface
+    public interface MatchHandler<V> {
+        // end 为匹配结束位置（不含）
+        void onMatch(V value, int end);
+    }
+
+    public static <V> Builder<V> builder() {
+        return new Builder<>();
+    }
+
+    public static class Builder<V> {
+        private final Node<V> root = new Node<>();
+        private int size;
+
+        public Builder<V> add(String pattern, V value) {
+            if (pattern == null || pattern.isEmpty()) {
+                return this;
+            }
+            Node<V> node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.next.computeIfAbsent(Character.toLowerCase(pattern.charAt(i)), c -> new Node<>());
+            }
+            if (node.outputs.isEmpty()) {
+                node.outputs = new ArrayList<>(1);
+            }
+            node.outputs.add(value);
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // 按层序（BFS）构建 fail 指针，并把后缀模式的输出合并进来
+        public AhoCorasick<V> build() {
+            Queue<Node<V>> queue = new ArrayDeque<>();
+            root.fail = root;
+            for (Node<V> child : root.next.values()) {
+                child.fail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node<V> node = queue.poll();
+                for (Map.Entry<Character, Node<V>> e : node.next.entrySet()) {
+                    char c = e.getKey();
+                    Node<V> child = e.getValue();
+                    Node<V> f = node.fail;
+                    while (f != root && !f.next.containsKey(c)) {
+                        f = f.fail;
+                    }
+                    Node<V> target = f.next.get(c);
+                    child.fail = target != null && target != child ? target : root;
+                    if (!child.fail.outputs.isEmpty()) {
+                        List<V> merged = new ArrayList<>(child.outputs.size() + child.fail.outputs.size());
+                        merged.addAll(child.outputs);
+                        merged.addAll(child.fail.outputs);
+                        child.outputs = merged;
+                    }
+                    queue.add(child);
+                }
+            }
+            return new AhoCorasick<>(root);
+        }
+    }
+
+    public void search(CharSequence text, MatchHandler<V> handler) {
+        Node<V> node = root;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            while (node != root && !node.next.containsKey(c)) {
+                node = node.fail;
+            }
+            Node<V> next = node.next.get(c);
+            if (next != null) {
+                node = next;
+            }
+            for (V v : node.outputs) {
+                handler.onMatch(v, i + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ben.chatanon.util;
+
+import com.knuddels.jtokkit.api.Encoding;
+
+// BPE 分词（jtokkit，与 tiktoken 词表一致，如 cl100k_base / o200k_base）
+public class BpeTokenizer implements Tokenizer {
+    private final Encoding encoding;
+
+    public BpeTokenizer(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    @Override
+    public String name() {
+        return encoding.getName();
+    }
+
+    @Override
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        // 按普通文本计数，不把 <|endoftext|> 等当作特殊 token 报错
+        return encoding.countTokensOrdinary(text);
+    }
+}
@@ -0,0 +1,126 @@
+package ben.chatanon.util;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+// 流式聊天下发协议，按请求协商（ChatMessageDto.protocol），响应头 X-Chat-Protocol 回显实际使用的协议
+// legacy：原样透传供应商 JSON，情感事件 {"emotion":...}，结束发送 [DONE]
+// compact-v1：只发送必要字段
+//   event: delta    data: {"c":"文本"}
+//   event: emotion  data: {"e":"smile01"}
+//   event: done     data: {"finish":"stop","usage":{"prompt":12,"completion":34}}
+//   event: error    data: {"msg":"..."}
+// 每帧带 SSE id（{generationId}:{seq}），断线后用 Last-Event-ID 请求 GET /api/chat/sendMessage/resume 续传
+public enum ChatStreamProtocol {
+    LEGACY("legacy"),
+    COMPACT_V1("compact-v1");
+
+    public static final String HEADER = "X-Chat-Protocol";
+
+    private final String name;
+
+    ChatStreamProtocol(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // 未指定或不认识的协议一律按 legacy 处理
+    public static ChatStreamProtocol of(String name) {
+        if (name != null) {
+            for (ChatStreamProtocol p : values()) {
+                if (p.name.equalsIgnoreCase(name.trim())) {
+                    return p;
+                }
+            }
+        }
+        return LEGACY;
+    }
+
+    // 单个上游 chunk 对应的下发内容，compact 模式下没有文本的 chunk 返回 null（不下发）
+    public String deltaPayload(SseChunkParser.Chunk chunk) {
+        if (this == LEGACY) {
+            return chunk.raw();
+        }
+        if (chunk.getContent() == null || chunk.getContent().isEmpty()) {
+            return null;
+        }
+        return "{\"c\":\"" + escape(chunk.getContent()) + "\"}";
+    }
+
+    // 单个下发事件：event 为事件名（legacy 的内容帧和结束帧没有事件名），terminal 表示流的最后一帧（done / error）
+    // 同一帧既可以转换成 SseEmitter 事件，也可以转换成响应式的 ServerSentEvent，并可写入 Redis 供断线续传
+    public record Frame(String event, String data, boolean terminal) {
+        public SseEmitter.SseEventBuilder toEmitterEvent(String id) {
+            SseEmitter.SseEventBuilder builder = SseEmitter.event();
+            if (id != null) {
+                builder.id(id);
+            }
+            if (event != null) {
+                builder.name(event);
+            }
+            return builder.data(data);
+        }
+
+        public ServerSentEvent<String> toServerSentEvent(String id) {
+            return ServerSentEvent.builder(data).id(id).event(event).build();
+        }
+    }
+
+    public Frame delta(String payload) {
+        return new Frame(this == COMPACT_V1 ? "delta" : null, payload, false);
+    }
+
+    // 一段完整文本作为单个内容帧（重复请求直接返回已完成的回答时使用），legacy 按供应商 chunk 格式包装
+    public Frame text(String content) {
+        String escaped = escape(content == null ? "" : content);
+        return this == LEGACY
+                ? delta("{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + escaped + "\"}}]}")
+                : delta("{\"c\":\"" + escaped + "\"}");
+    }
+
+    public Frame emotion(String emotion) {
+        return new Frame("emotion", emotionPayload(emotion), false);
+    }
+
+    // usage 为 -1 表示供应商未返回
+    public Frame done(String finishReason, int promptTokens, int completionTokens) {
+        return new Frame(this == COMPACT_V1 ? "done" : null,
+                donePayload(finishReason, promptTokens, completionTokens), true);
+    }
+
+    public Frame error(String message) {
+        return new Frame("error", errorPayload(message), true);
+    }
+
+    private String emotionPayload(String emotion) {
+        return this == LEGACY
+                ? "{\"emotion\":\"" + escape(emotion) + "\"}"
+                : "{\"e\":\"" + escape(emotion) + "\"}";
+    }
+
+    private String donePayload(String finishReason, int promptTokens, int completionTokens) {
+        if (this == LEGACY) {
+            return "[DONE]";
+        }
+        StringBuilder payload = new StringBuilder("{\"finish\":");
+        payload.append(finishReason == null ? "null" : "\"" + escape(finishReason) + "\"");
+        if (promptTokens >= 0 || completionTokens >= 0) {
+            payload.append(",\"usage\":{\"prompt\":").append(Math.max(promptTokens, 0))
+                    .append(",\"completion\":").append(Math.max(completionTokens, 0)).append('}');
+        }
+        payload.append('}');
+        return payload.toString();
+    }
+
+    private static String errorPayload(String message) {
+        return "{\"msg\":\"" + escape(message == null ? "error" : message) + "\"}";
+    }
+
+    private static String escape(String text) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(text));
+    }
+}
@@ -0,0 +1,39 @@
+package ben.chatanon.util;
+
+// 估算分词：中日韩字符按 1 个 token 计，其余字符约 4 个算 1 个 token
+// 用于没有对应 BPE 词表的模型
+public class HeuristicTokenizer implements Tokenizer {
+    public static final String NAME = "heuristic";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            if (isCjk(cp)) {
+                cjk++;
+            } else {
+                other++;
+            }
+            i += Character.charCount(cp);
+        }
+        return cjk + (other + 3) / 4;
+    }
+
+    private boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,221 @@
+package ben.chatanon.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// 上游 SSE 流式解析器：直接在 okio BufferedSource 上按字节切分 data: 行，
+// 用 Jackson 流式 JsonParser 只取 choices[0].delta.content、finish_reason 和 usage，
+// 不构建 JsonNode 树，也不为每行生成 String
+// 非线程安全，每个流一个实例
+public class SseChunkParser {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ByteString DATA_PREFIX = ByteString.encodeUtf8("data:");
+    private static final ByteString DONE = ByteString.encodeUtf8("[DONE]");
+
+    // 复用的行缓冲区
+    private byte[] buffer = new byte[1024];
+
+    // 单个 data: 事件的解析结果（每次 next 时复用并重置）
+    public static final class Chunk {
+        private byte[] raw;
+        private int length;
+        private boolean done;
+        private String content;
+        private String finishReason;
+        private int promptTokens = -1;
+        private int completionTokens = -1;
+
+        private void reset(byte[] raw, int length) {
+            this.raw = raw;
+            this.length = length;
+            this.done = false;
+            this.content = null;
+            this.finishReason = null;
+            this.promptTokens = -1;
+            this.completionTokens = -1;
+        }
+
+        // 是否为 [DONE] 结束标识
+        public boolean isDone() {
+            return done;
+        }
+
+        // choices[0].delta.content，没有时为 null
+        public String getContent() {
+            return content;
+        }
+
+        // choices[0].finish_reason，没有时为 null
+        public String getFinishReason() {
+            return finishReason;
+        }
+
+        // usage.prompt_tokens，没有时为 -1
+        public int getPromptTokens() {
+            return promptTokens;
+        }
+
+        // usage.completion_tokens，没有时为 -1
+        public int getCompletionTokens() {
+            return completionTokens;
+        }
+
+        public boolean hasUsage() {
+            return promptTokens >= 0 || completionTokens >= 0;
+        }
+
+        // 原始 data 内容（透传给前端时才解码成 String）
+        public String raw() {
+            return new String(raw, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    // 读取下一条 data: 事件，流结束返回 false
+    public boolean next(BufferedSource source, Chunk chunk) throws IOException {
+        while (true) {
+            long newline = source.indexOf((byte) '\n');
+            long lineLength;
+            if (newline == -1) {
+                // 最后一行没有换行符
+                if (source.exhausted()) {
+                    return false;
+                }
+                lineLength = source.getBuffer().size();
+            } else {
+                lineLength = newline;
+            }
+
+            if (lineLength < DATA_PREFIX.size() || !source.rangeEquals(0, DATA_PREFIX)) {
+                // 非 data: 行（空行、注释、event: 等）直接跳过
+                source.skip(newline == -1 ? lineLength : lineLength + 1);
+                continue;
+            }
+
+            source.skip(DATA_PREFIX.size());
+            lineLength -= DATA_PREFIX.size();
+            while (lineLength > 0 && source.getBuffer().getByte(0) == ' ') {
+                source.skip(1);
+                lineLength--;
+            }
+
+            int length = (int) lineLength;
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            // 该行已在 indexOf 时整体缓冲，直接拷贝到复用缓冲区
+            int read = 0;
+            while (read < length) {
+                read += source.read(buffer, read, length - read);
+            }
+            if (newline != -1) {
+                source.skip(1);
+            }
+            if (length > 0 && buffer[length - 1] == '\r') {
+                length--;
+            }
+
+            chunk.reset(buffer, length);
+            if (length == DONE.size() && DONE.rangeEquals(0, buffer, 0, length)) {
+                chunk.done = true;
+            } else {
+                parse(chunk);
+            }
+            return true;
+        }
+    }
+
+    // 解析单独一行（响应式管道按行切分后调用），不是 data: 行时返回 false
+    // line 由 chunk 持有，调用方不能再复用该数组
+    public boolean parseLine(byte[] line, Chunk chunk) throws IOException {
+        int length = line.length;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length < DATA_PREFIX.size() || !DATA_PREFIX.rangeEquals(0, line, 0, DATA_PREFIX.size())) {
+            return false;
+        }
+        int start = DATA_PREFIX.size();
+        while (start < length && line[start] == ' ') {
+            start++;
+        }
+        byte[] data = Arrays.copyOfRange(line, start, length);
+        chunk.reset(data, data.length);
+        if (data.length == DONE.size() && DONE.rangeEquals(0, data, 0, data.length)) {
+            chunk.done = true;
+        } else {
+            parse(chunk);
+        }
+        return true;
+    }
+
+    // 流式遍历 JSON，只取需要的字段，其余整体跳过
+    private void parse(Chunk chunk) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(chunk.raw, 0, chunk.length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                    parseChoices(parser, chunk);
+                } else if ("usage".equals(field) && value == JsonToken.START_OBJECT) {
+                    parseUsage(parser, chunk);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void parseChoices(JsonParser parser, Chunk chunk) throws IOException {
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!first || parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String deltaField = parser.currentName();
+                        JsonToken deltaValue = parser.nextToken();
+                        if ("content".equals(deltaField) && deltaValue == JsonToken.VALUE_STRING) {
+                            chunk.content = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if ("finish_reason".equals(field) && value == JsonToken.VALUE_STRING) {
+                    chunk.finishReason = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void parseUsage(JsonParser parser, Chunk chunk) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("prompt_tokens".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                chunk.promptTokens = parser.getIntValue();
+            } else if ("completion_tokens".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                chunk.completionTokens = parser.getIntValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+}
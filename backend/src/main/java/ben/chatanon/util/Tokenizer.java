@@ -0,0 +1,9 @@
+package ben.chatanon.util;
+
+// 本地分词器（不走网络），按 Models.modelVersion 选择具体实现
+public interface Tokenizer {
+    // 分词器名称（编码名），用于缓存 key 和指标
+    String name();
+
+    int count(String text);
+}
@@ -0,0 +1,75 @@
+-- 准入控制：用户 / 模型两级令牌桶 + 并发数上限，一次往返完成检查并占用
+-- KEYS[1] 用户令牌桶  KEYS[2] 模型令牌桶  KEYS[3] 用户在途集合  KEYS[4] 模型在途集合
+-- ARGV[1] 用户每秒补充速率  ARGV[2] 用户桶容量  ARGV[3] 模型每秒补充速率  ARGV[4] 模型桶容量
+-- ARGV[5] 用户并发上限  ARGV[6] 模型并发上限  ARGV[7] 许可 id  ARGV[8] 许可租约毫秒数
+-- ARGV[9] 并发超限时建议的重试毫秒数
+-- 返回 {code, retryAfterMs}：0 放行，1 用户限速，2 模型限速，3 用户并发超限，4 模型并发超限
+-- 速率 / 上限 <= 0 表示不限制
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local userRate, userBurst = tonumber(ARGV[1]), tonumber(ARGV[2])
+local modelRate, modelBurst = tonumber(ARGV[3]), tonumber(ARGV[4])
+local userMax, modelMax = tonumber(ARGV[5]), tonumber(ARGV[6])
+local permitId, leaseMs, busyRetryMs = ARGV[7], tonumber(ARGV[8]), tonumber(ARGV[9])
+
+-- 在途数（先清理租约已过期的许可，防止节点宕机后泄漏）
+local function inflight(key, limit)
+    if limit <= 0 then
+        return 0
+    end
+    redis.call('ZREMRANGEBYSCORE', key, '-inf', now)
+    return redis.call('ZCARD', key)
+end
+
+-- 补充后的令牌数
+local function available(key, rate, burst)
+    if rate <= 0 then
+        return burst
+    end
+    local bucket = redis.call('HMGET', key, 'tokens', 'ts')
+    local tokens, ts = tonumber(bucket[1]), tonumber(bucket[2])
+    if tokens == nil then
+        return burst
+    end
+    return math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+end
+
+if userMax > 0 and inflight(KEYS[3], userMax) >= userMax then
+    return {3, busyRetryMs}
+end
+if modelMax > 0 and inflight(KEYS[4], modelMax) >= modelMax then
+    return {4, busyRetryMs}
+end
+
+local userTokens = available(KEYS[1], userRate, userBurst)
+if userRate > 0 and userTokens < 1 then
+    return {1, math.ceil((1 - userTokens) * 1000 / userRate)}
+end
+local modelTokens = available(KEYS[2], modelRate, modelBurst)
+if modelRate > 0 and modelTokens < 1 then
+    return {2, math.ceil((1 - modelTokens) * 1000 / modelRate)}
+end
+
+-- 全部通过才扣减，避免一个维度被拒时另一个维度白白消耗
+local function take(key, rate, burst, tokens)
+    if rate <= 0 then
+        return
+    end
+    redis.call('HSET', key, 'tokens', tokens - 1, 'ts', now)
+    redis.call('PEXPIRE', key, math.ceil(burst * 1000 / rate) + 1000)
+end
+take(KEYS[1], userRate, userBurst, userTokens)
+take(KEYS[2], modelRate, modelBurst, modelTokens)
+
+local function hold(key, limit)
+    if limit <= 0 then
+        return
+    end
+    redis.call('ZADD', key, now + leaseMs, permitId)
+    redis.call('PEXPIRE', key, leaseMs)
+end
+hold(KEYS[3], userMax)
+hold(KEYS[4], modelMax)
+
+return {0, 0}
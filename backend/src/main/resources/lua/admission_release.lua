@@ -0,0 +1,5 @@
+-- 归还并发许可
+-- KEYS[1] 用户在途集合  KEYS[2] 模型在途集合  ARGV[1] 许可 id
+redis.call('ZREM', KEYS[1], ARGV[1])
+redis.call('ZREM', KEYS[2], ARGV[1])
+return 0
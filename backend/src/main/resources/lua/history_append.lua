@@ -0,0 +1,11 @@
+-- 新消息追加到会话热历史
+-- 缓存不存在时不创建，只留下追加标记：正在读库回填的请求看到标记后放弃写入，避免回填覆盖掉这条消息
+-- KEYS[1] 历史 List  KEYS[2] 追加标记  ARGV[1] 消息 JSON  ARGV[2] 最多保留条数  ARGV[3] 过期时间（秒）
+if redis.call('EXISTS', KEYS[1]) == 1 then
+    redis.call('RPUSH', KEYS[1], ARGV[1])
+    redis.call('LTRIM', KEYS[1], -tonumber(ARGV[2]), -1)
+    redis.call('EXPIRE', KEYS[1], ARGV[3])
+    return 1
+end
+redis.call('SET', KEYS[2], '1', 'EX', ARGV[3])
+return 0
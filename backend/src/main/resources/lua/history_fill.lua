@@ -0,0 +1,12 @@
+-- 缓存未命中时用 MySQL 读到的最近消息回填会话热历史
+-- 读库期间有新消息追加（追加标记存在）或已被其它请求回填时放弃，下次读取再回填
+-- KEYS[1] 历史 List  KEYS[2] 追加标记  ARGV[1] 最多保留条数  ARGV[2] 过期时间（秒）  ARGV[3..] 消息 JSON（按时间正序）
+if redis.call('EXISTS', KEYS[2]) == 1 or redis.call('EXISTS', KEYS[1]) == 1 then
+    return 0
+end
+for i = 3, #ARGV do
+    redis.call('RPUSH', KEYS[1], ARGV[i])
+end
+redis.call('LTRIM', KEYS[1], -tonumber(ARGV[1]), -1)
+redis.call('EXPIRE', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,6 @@
+-- 归还会话轮次租约（只删除自己持有的租约）
+-- KEYS[1] 会话租约  ARGV[1] 租约 token
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
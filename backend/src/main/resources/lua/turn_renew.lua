@@ -0,0 +1,6 @@
+-- 续期会话轮次租约（只续期自己持有的租约）
+-- KEYS[1] 会话租约  ARGV[1] 租约 token  ARGV[2] 过期时间（毫秒）
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
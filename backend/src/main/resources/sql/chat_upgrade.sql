@@ -0,0 +1,35 @@
+-- 聊天模块数据库升级脚本（按顺序执行，ddl-auto 为 none，需手动建表/改表）
+
+-- 会话滚动摘要
+CREATE TABLE IF NOT EXISTS session_summary
+(
+    sessionId     INT      NOT NULL PRIMARY KEY,
+    summary       LONGTEXT NOT NULL,
+    lastMessageId INT      NOT NULL DEFAULT 0,
+    tokens        INT      NOT NULL DEFAULT 0,
+    version       INT      NOT NULL DEFAULT 0,
+    updatedAt     DATETIME NOT NULL,
+    CONSTRAINT fk_session_summary_session FOREIGN KEY (sessionId) REFERENCES sessions (sessionId) ON DELETE CASCADE
+);
+
+-- 客户端中途断开时保存的部分回答
+ALTER TABLE messages
+    ADD COLUMN truncated TINYINT(1) NOT NULL DEFAULT 0;
+
+-- 每轮供应商返回的 usage（记在 assistant 消息上）
+ALTER TABLE messages
+    ADD COLUMN promptTokens     INT NULL,
+    ADD COLUMN completionTokens INT NULL;
+
+-- 本地情感分类词表（关键词 / emoji，逗号或换行分隔，可写 "关键词:权重"）
+ALTER TABLE live2daction
+    ADD COLUMN keywords TEXT NULL;
+
+-- 模型组：同一 modelVersion 的多个部署填同一个组名，会话每轮在组内按延迟 / 错误率路由
+ALTER TABLE models
+    ADD COLUMN modelGroup VARCHAR(64) NULL,
+    ADD INDEX idx_models_model_group (modelGroup);
+
+-- assistant 消息记录本轮实际使用的模型（组内路由到的成员）
+ALTER TABLE messages
+    ADD COLUMN modelId INT NULL;
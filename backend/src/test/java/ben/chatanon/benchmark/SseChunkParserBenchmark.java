@@ -0,0 +1,96 @@
+package ben.chatanon.benchmark;
+
+import ben.chatanon.util.SseChunkParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// 上游 SSE 解析对比：readUtf8Line + substring + readTree（旧） vs SseChunkParser（新）
+// 运行：mvn test-compile 后以 test classpath 执行本类 main 方法
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SseChunkParserBenchmark {
+    // 一次回答的 chunk 数
+    @Param({"300"})
+    private int chunks;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ByteString stream;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chunks; i++) {
+            sb.append("data: {\"choices\":[{\"delta\":{\"content\":\"你好，世界")
+                    .append(i)
+                    .append("\",\"role\":\"assistant\"},\"index\":0}],\"created\":1718000000,")
+                    .append("\"id\":\"021718000000000abcdef\",\"model\":\"deepseek-v3-250324\",")
+                    .append("\"service_tier\":\"default\",\"object\":\"chat.completion.chunk\",\"usage\":null}\n\n");
+        }
+        sb.append("data: {\"choices\":[],\"usage\":{\"prompt_tokens\":1200,\"completion_tokens\":300,\"total_tokens\":1500}}\n\n");
+        sb.append("data: [DONE]\n\n");
+        stream = ByteString.encodeUtf8(sb.toString());
+    }
+
+    @Benchmark
+    public void jsonNodeTree(Blackhole bh) throws IOException {
+        Buffer source = new Buffer().write(stream);
+        StringBuilder answer = new StringBuilder();
+        while (!source.exhausted()) {
+            String line = source.readUtf8Line();
+            if (line != null && line.startsWith("data:")) {
+                String data = line.substring(5).trim();
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                bh.consume(data);
+                JsonNode choices = mapper.readTree(data).path("choices");
+                if (choices.size() == 0) {
+                    continue;
+                }
+                JsonNode delta = choices.get(0).path("delta").path("content");
+                if (!delta.isMissingNode()) {
+                    answer.append(delta.asText());
+                }
+            }
+        }
+        bh.consume(answer);
+    }
+
+    @Benchmark
+    public void streamingParser(Blackhole bh) throws IOException {
+        Buffer source = new Buffer().write(stream);
+        StringBuilder answer = new StringBuilder();
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        while (parser.next(source, chunk)) {
+            if (chunk.isDone()) {
+                break;
+            }
+            if (chunk.getContent() != null) {
+                answer.append(chunk.getContent());
+            }
+        }
+        bh.consume(answer);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SseChunkParserBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
@@ -0,0 +1,141 @@
+package ben.chatanon.util;
+
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SseChunkParserTest {
+
+    private static Buffer source(String text) {
+        return new Buffer().writeUtf8(text);
+    }
+
+    private static String delta(String content) {
+        return "{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\"" + content + "\"}}]}";
+    }
+
+    @Test
+    void readsContentWithAndWithoutSpaceAfterPrefix() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: " + delta("你好") + "\n\ndata:" + delta("世界") + "\n\n");
+
+        assertTrue(parser.next(source, chunk));
+        assertEquals("你好", chunk.getContent());
+        assertFalse(chunk.isDone());
+        assertTrue(parser.next(source, chunk));
+        assertEquals("世界", chunk.getContent());
+        assertFalse(parser.next(source, chunk));
+    }
+
+    @Test
+    void stripsCarriageReturnFromCrlfLines() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: " + delta("a") + "\r\n\r\ndata: [DONE]\r\n\r\n");
+
+        assertTrue(parser.next(source, chunk));
+        assertEquals("a", chunk.getContent());
+        assertEquals(delta("a"), chunk.raw());
+        assertTrue(parser.next(source, chunk));
+        assertTrue(chunk.isDone());
+        assertFalse(parser.next(source, chunk));
+    }
+
+    @Test
+    void readsLastLineWithoutNewline() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: " + delta("a") + "\n\ndata: [DONE]");
+
+        assertTrue(parser.next(source, chunk));
+        assertEquals("a", chunk.getContent());
+        assertTrue(parser.next(source, chunk));
+        assertTrue(chunk.isDone());
+        assertFalse(parser.next(source, chunk));
+    }
+
+    @Test
+    void marksDone() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+
+        assertTrue(parser.next(source("data: [DONE]\n\n"), chunk));
+        assertTrue(chunk.isDone());
+        assertNull(chunk.getContent());
+        assertFalse(chunk.hasUsage());
+    }
+
+    @Test
+    void readsUsageOnlyChunk() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: {\"choices\":[],\"usage\":{\"prompt_tokens\":12,"
+                + "\"completion_tokens\":34,\"total_tokens\":46}}\n\n");
+
+        assertTrue(parser.next(source, chunk));
+        assertFalse(chunk.isDone());
+        assertNull(chunk.getContent());
+        assertNull(chunk.getFinishReason());
+        assertTrue(chunk.hasUsage());
+        assertEquals(12, chunk.getPromptTokens());
+        assertEquals(34, chunk.getCompletionTokens());
+    }
+
+    @Test
+    void usesFirstChoiceOnly() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: {\"choices\":["
+                + "{\"index\":0,\"delta\":{\"content\":\"first\"},\"finish_reason\":\"stop\"},"
+                + "{\"index\":1,\"delta\":{\"content\":\"second\"},\"finish_reason\":\"length\"}]}\n\n");
+
+        assertTrue(parser.next(source, chunk));
+        assertEquals("first", chunk.getContent());
+        assertEquals("stop", chunk.getFinishReason());
+    }
+
+    @Test
+    void skipsNonDataLines() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source(": keep-alive\n\nevent: message\nid: 1\nretry: 1000\n"
+                + "data: " + delta("a") + "\n\n: trailing comment");
+
+        assertTrue(parser.next(source, chunk));
+        assertEquals("a", chunk.getContent());
+        assertFalse(parser.next(source, chunk));
+    }
+
+    @Test
+    void resetsFieldsBetweenChunks() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+        Buffer source = source("data: {\"choices\":[{\"delta\":{\"content\":\"a\"},\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":1,\"completion_tokens\":2}}\n\ndata: " + delta("b") + "\n\n");
+
+        assertTrue(parser.next(source, chunk));
+        assertTrue(chunk.hasUsage());
+        assertTrue(parser.next(source, chunk));
+        assertEquals("b", chunk.getContent());
+        assertNull(chunk.getFinishReason());
+        assertFalse(chunk.hasUsage());
+    }
+
+    @Test
+    void parseLineHandlesPrefixVariantsAndCrlf() throws IOException {
+        SseChunkParser parser = new SseChunkParser();
+        SseChunkParser.Chunk chunk = new SseChunkParser.Chunk();
+
+        assertTrue(parser.parseLine(("data:" + delta("a") + "\r").getBytes(StandardCharsets.UTF_8), chunk));
+        assertEquals("a", chunk.getContent());
+        assertTrue(parser.parseLine("data: [DONE]".getBytes(StandardCharsets.UTF_8), chunk));
+        assertTrue(chunk.isDone());
+        assertFalse(parser.parseLine("event: message".getBytes(StandardCharsets.UTF_8), chunk));
+        assertFalse(parser.parseLine(new byte[0], chunk));
+    }
+}